@@ -3,9 +3,11 @@ package net.weesli.api;
 import net.weesli.api.database.Database;
 
 import java.util.List;
+import java.util.Map;
 
 public interface DatabaseProvider {
 
     List<Database> getDatabases();
     CoreSettings getCoreSettings();
+    Map<String, Object> getStats(); // engine metrics for the admin stats action
 }
@@ -2,10 +2,17 @@ package net.weesli.api.database;
 
 
 import net.weesli.api.cache.CollectionData;
+import net.weesli.api.model.Filter;
 import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Pipeline;
+import net.weesli.api.model.Query;
+import net.weesli.api.model.Range;
 
 import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public interface Collection {
@@ -21,6 +28,25 @@ public interface Collection {
     byte[] findById(String id);
     List<byte[]> find(String where, Object value);
     List<byte[]> findAll();
+    List<byte[]> findRange(String field, Range range, int limit, boolean descending); // ordered by field, limit <= 0 returns all
+    List<String> search(String field, String query, boolean matchAll, int limit); // ids ranked by relevance, needs a text index
+    List<byte[]> find(Map<String, Object> where, List<String> projection); // equality on every where field, a null projection returns whole documents
+    List<byte[]> find(Filter filter, int limit); // limit <= 0 returns all
+    List<byte[]> query(Query query); // filter, sort, skip, limit and projection all run in the engine
+    Iterator<byte[]> iterate(Query query); // like query, documents are read as the iterator advances
+    Map<String, Object> explain(Query query); // the access path the query would take
+    long count(Filter filter); // answered from indexes and metadata when they cover the filter, documents are read otherwise
+    boolean exists(String id); // from the key directory, no document is read
+    long estimatedCount(); // the documents in the metadata, a write in flight may be missing
+    List<Map<String, Object>> aggregate(Pipeline pipeline); // runs in the engine, only the output of the last stage is returned
+
+    boolean createIndex(String field);
+    boolean createIndex(String field, String type);
+    boolean createIndex(List<String> fields, List<String> include); // composite, dropped by its fields joined with ','
+    boolean dropIndex(String field);
+    Set<String> getIndexes();
+    List<Map<String, Object>> getIndexBuilds(); // progress of the background builds, an index serves queries once it is ready
+    boolean cancelIndexBuild(String field); // drops the index
 
     CollectionData getCollectionData();
 
@@ -0,0 +1,169 @@
+package net.weesli.api.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// a predicate tree over document fields, a field with dots walks into nested objects unless the document has it as a key
+public sealed interface Filter permits Filter.Eq, Filter.In, Filter.Compare, Filter.Exists, Filter.And, Filter.Or, Filter.Not {
+
+    record Eq(String field, Object value) implements Filter {}
+
+    record In(String field, List<Object> values) implements Filter {}
+
+    record Compare(String field, Range range) implements Filter {} // numbers, strings and booleans, see Range
+
+    record Exists(String field) implements Filter {}
+
+    record And(List<Filter> filters) implements Filter {}
+
+    record Or(List<Filter> filters) implements Filter {}
+
+    record Not(Filter filter) implements Filter {}
+
+    static Filter all() {
+        return new And(List.of());
+    }
+
+    static Filter eq(String field, Object value) {
+        return new Eq(field, value);
+    }
+
+    static Filter ne(String field, Object value) {
+        return new Not(new Eq(field, value));
+    }
+
+    static Filter in(String field, List<Object> values) {
+        return new In(field, List.copyOf(values));
+    }
+
+    static Filter range(String field, Range range) {
+        return new Compare(field, range);
+    }
+
+    static Filter exists(String field) {
+        return new Exists(field);
+    }
+
+    static Filter and(Filter... filters) {
+        return new And(List.of(filters));
+    }
+
+    static Filter or(Filter... filters) {
+        return new Or(List.of(filters));
+    }
+
+    static Filter not(Filter filter) {
+        return new Not(filter);
+    }
+
+    // {"and": [...]}, {"or": [...]}, {"not": {...}} or {"field": "status", "value": "active"}
+    @SuppressWarnings("unchecked")
+    static Filter fromMap(Map<String, Object> map) {
+        if (map == null) throw new IllegalArgumentException("Filter cannot be null");
+        if (map.get("and") instanceof List<?> list) return new And(children((List<Object>) list));
+        if (map.get("or") instanceof List<?> list) return new Or(children((List<Object>) list));
+        if (map.get("not") instanceof Map<?, ?> child) return new Not(fromMap((Map<String, Object>) child));
+        if (map.get("field") instanceof String field && map.containsKey("value")) return new Eq(field, map.get("value"));
+        throw new IllegalArgumentException("Invalid filter " + map);
+    }
+
+    /**
+     * Parses a query document, every key must hold for a document to match:
+     * {"age": {"$gte": 18, "$lt": 65}, "address.city": "Paris", "$or": [{"role": "admin"}, {"tags": {"$in": ["a", "b"]}}]}.
+     * A field takes a value (equality) or operators: $eq $ne $gt $gte $lt $lte $in $nin $exists.
+     * The document takes $and $or $nor $not next to its fields, an empty document matches everything.
+     */
+    @SuppressWarnings("unchecked")
+    static Filter parse(Map<String, Object> query) {
+        if (query == null) throw new IllegalArgumentException("Query cannot be null");
+        List<Filter> filters = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            switch (key) {
+                case "$and" -> filters.add(new And(documents(key, value)));
+                case "$or" -> filters.add(new Or(documents(key, value)));
+                case "$nor" -> filters.add(new Not(new Or(documents(key, value))));
+                case "$not" -> {
+                    if (!(value instanceof Map<?, ?> child)) throw new IllegalArgumentException("$not takes a query document");
+                    filters.add(new Not(parse((Map<String, Object>) child)));
+                }
+                default -> {
+                    if (key.startsWith("$")) throw new IllegalArgumentException("Unknown query operator " + key);
+                    filters.add(condition(key, value));
+                }
+            }
+        }
+        return filters.size() == 1 ? filters.get(0) : new And(List.copyOf(filters));
+    }
+
+    private static Filter condition(String field, Object value) {
+        // an object without operators is compared as a whole
+        if (!(value instanceof Map<?, ?> operators) || operators.isEmpty() || !operators.keySet().stream().allMatch(key -> String.valueOf(key).startsWith("$"))) {
+            return new Eq(field, value);
+        }
+        List<Filter> filters = new ArrayList<>();
+        Object from = null, to = null;
+        boolean fromInclusive = false, toInclusive = false;
+        for (Map.Entry<?, ?> entry : operators.entrySet()) {
+            String operator = String.valueOf(entry.getKey());
+            Object operand = entry.getValue();
+            switch (operator) {
+                case "$eq" -> filters.add(new Eq(field, operand));
+                case "$ne" -> filters.add(new Not(new Eq(field, operand)));
+                case "$gt", "$gte" -> {
+                    from = bound(operator, operand);
+                    fromInclusive = operator.equals("$gte");
+                }
+                case "$lt", "$lte" -> {
+                    to = bound(operator, operand);
+                    toInclusive = operator.equals("$lte");
+                }
+                case "$in" -> filters.add(new In(field, values(operator, operand)));
+                case "$nin" -> filters.add(new Not(new In(field, values(operator, operand))));
+                case "$exists" -> {
+                    if (!(operand instanceof Boolean exists)) throw new IllegalArgumentException("$exists takes true or false");
+                    filters.add(exists ? new Exists(field) : new Not(new Exists(field)));
+                }
+                default -> throw new IllegalArgumentException("Unknown query operator " + operator + " on " + field);
+            }
+        }
+        if (from != null || to != null) filters.add(new Compare(field, new Range(from, fromInclusive, to, toInclusive)));
+        return filters.size() == 1 ? filters.get(0) : new And(List.copyOf(filters));
+    }
+
+    private static Object bound(String operator, Object operand) {
+        if (!(operand instanceof Number || operand instanceof String || operand instanceof Boolean)) {
+            throw new IllegalArgumentException(operator + " takes a number, string or boolean");
+        }
+        return operand;
+    }
+
+    private static List<Object> values(String operator, Object operand) {
+        if (!(operand instanceof List<?> list)) throw new IllegalArgumentException(operator + " takes a list");
+        return new ArrayList<>(list);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Filter> documents(String operator, Object value) {
+        if (!(value instanceof List<?> list) || list.isEmpty()) throw new IllegalArgumentException(operator + " takes a non-empty list of query documents");
+        List<Filter> filters = new ArrayList<>();
+        for (Object child : list) {
+            if (!(child instanceof Map<?, ?> map)) throw new IllegalArgumentException("Invalid query document " + child);
+            filters.add(parse((Map<String, Object>) map));
+        }
+        return filters;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Filter> children(List<Object> list) {
+        if (list.isEmpty()) throw new IllegalArgumentException("Filter combinations cannot be empty");
+        List<Filter> filters = new ArrayList<>();
+        for (Object child : list) {
+            if (!(child instanceof Map<?, ?> map)) throw new IllegalArgumentException("Invalid filter " + child);
+            filters.add(fromMap((Map<String, Object>) map));
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,110 @@
+package net.weesli.api.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// stages applied one after the other to the documents of a collection, each one to the output of the one before
+public record Pipeline(List<Stage> stages) {
+
+    private static final Set<String> OPERATORS = Set.of("sum", "count", "avg", "min", "max");
+
+    public sealed interface Stage permits Match, Group, Sort, Skip, Limit, Project, Count {}
+
+    public record Match(Filter filter) implements Stage {}
+
+    // key is null for a single group, "$field", a constant or a map of those, the output has it as _id
+    public record Group(Object key, Map<String, Accumulator> accumulators) implements Stage {}
+
+    public record Accumulator(String operator, Object value) {} // sum, count, avg, min or max of "$field" or a constant
+
+    public record Sort(List<Query.Sort> keys) implements Stage {}
+
+    public record Skip(int count) implements Stage {}
+
+    public record Limit(int count) implements Stage {}
+
+    public record Project(List<String> fields) implements Stage {} // _id and $id are kept when the document has them
+
+    public record Count(String field) implements Stage {} // a single document with the number of documents as field
+
+    public Pipeline {
+        if (stages == null) throw new IllegalArgumentException("Pipeline cannot be null");
+        stages = List.copyOf(stages);
+    }
+
+    // [{"$match": {...}}, {"$group": {"_id": "$city", "total": {"$sum": "$amount"}, "n": {"$count": {}}}}, {"$sort": {"total": -1}}, {"$limit": 10}]
+    @SuppressWarnings("unchecked")
+    public static Pipeline fromList(List<?> list) {
+        if (list == null) throw new IllegalArgumentException("Pipeline cannot be null");
+        List<Stage> stages = new ArrayList<>();
+        for (Object item : list) {
+            if (!(item instanceof Map<?, ?> stage) || stage.size() != 1) throw new IllegalArgumentException("A pipeline stage must have exactly one operator");
+            Map.Entry<?, ?> entry = stage.entrySet().iterator().next();
+            Object value = entry.getValue();
+            stages.add(switch (String.valueOf(entry.getKey())) {
+                case "$match" -> {
+                    if (!(value instanceof Map<?, ?> filter)) throw new IllegalArgumentException("$match takes a query document");
+                    yield new Match(Filter.parse((Map<String, Object>) filter));
+                }
+                case "$group" -> group(value);
+                case "$sort" -> {
+                    List<Query.Sort> keys = Query.sorts(value);
+                    if (keys.isEmpty()) throw new IllegalArgumentException("$sort needs at least one field");
+                    yield new Sort(keys);
+                }
+                case "$skip" -> new Skip(count("$skip", value));
+                case "$limit" -> new Limit(count("$limit", value));
+                case "$project" -> project(value);
+                case "$count" -> {
+                    if (!(value instanceof String field) || field.isEmpty() || field.startsWith("$")) throw new IllegalArgumentException("$count takes a field name");
+                    yield new Count(field);
+                }
+                default -> throw new IllegalArgumentException("Unknown pipeline stage " + entry.getKey());
+            });
+        }
+        return new Pipeline(stages);
+    }
+
+    private static Group group(Object value) {
+        if (!(value instanceof Map<?, ?> group) || !group.containsKey("_id")) throw new IllegalArgumentException("$group takes a document with an _id");
+        Map<String, Accumulator> accumulators = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : group.entrySet()) {
+            String field = String.valueOf(entry.getKey());
+            if (field.equals("_id")) continue;
+            if (!(entry.getValue() instanceof Map<?, ?> accumulator) || accumulator.size() != 1) {
+                throw new IllegalArgumentException("Group field " + field + " must have exactly one accumulator");
+            }
+            Map.Entry<?, ?> operator = accumulator.entrySet().iterator().next();
+            String name = String.valueOf(operator.getKey());
+            if (!name.startsWith("$") || !OPERATORS.contains(name.substring(1))) throw new IllegalArgumentException("Unknown accumulator " + name);
+            accumulators.put(field, new Accumulator(name.substring(1), operator.getValue()));
+        }
+        return new Group(group.get("_id"), accumulators);
+    }
+
+    // ["name", "address.city"] or {"name": 1, "address.city": 1}
+    private static Project project(Object value) {
+        List<String> fields = new ArrayList<>();
+        if (value instanceof List<?> list) {
+            for (Object field : list) fields.add(String.valueOf(field));
+        } else if (value instanceof Map<?, ?> map) {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!(entry.getValue() instanceof Number number && number.intValue() == 1) && !Boolean.TRUE.equals(entry.getValue())) {
+                    throw new IllegalArgumentException("$project only includes fields");
+                }
+                fields.add(String.valueOf(entry.getKey()));
+            }
+        } else {
+            throw new IllegalArgumentException("$project takes a list of fields");
+        }
+        return new Project(List.copyOf(fields));
+    }
+
+    private static int count(String stage, Object value) {
+        if (!(value instanceof Number number) || number.longValue() < 0) throw new IllegalArgumentException(stage + " takes a number that is not negative");
+        return (int) Math.min(Integer.MAX_VALUE, number.longValue());
+    }
+}
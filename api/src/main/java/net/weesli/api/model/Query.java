@@ -0,0 +1,63 @@
+package net.weesli.api.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// a filter with sort, skip, limit and projection, all applied inside the engine, limit 0 returns all and a null projection whole documents
+public record Query(Filter filter, List<Sort> sort, int skip, int limit, List<String> projection) {
+
+    // documents without an ordered value for the field come after the others in either direction
+    public record Sort(String field, boolean descending) {}
+
+    public Query {
+        if (filter == null) throw new IllegalArgumentException("Query filter cannot be null");
+        if (skip < 0 || limit < 0) throw new IllegalArgumentException("Skip and limit cannot be negative");
+        sort = sort != null ? List.copyOf(sort) : List.of();
+        projection = projection != null && !projection.isEmpty() ? List.copyOf(projection) : null;
+    }
+
+    public static Query of(Filter filter) {
+        return new Query(filter, List.of(), 0, 0, null);
+    }
+
+    // {"filter": {...}, "sort": {"age": -1, "name": 1}, "skip": 20, "limit": 10, "projection": ["name", "address.city"]}, every key is optional
+    @SuppressWarnings("unchecked")
+    public static Query fromMap(Map<String, Object> map) {
+        if (map == null) throw new IllegalArgumentException("Query cannot be null");
+        Object filter = map.get("filter");
+        if (filter != null && !(filter instanceof Map)) throw new IllegalArgumentException("Query filter must be a query document");
+        Object projection = map.get("projection");
+        if (projection != null && !(projection instanceof List)) throw new IllegalArgumentException("Query projection must be a list of fields");
+        return new Query(filter != null ? Filter.parse((Map<String, Object>) filter) : Filter.all(), sorts(map.get("sort")),
+                number(map, "skip"), number(map, "limit"), (List<String>) projection);
+    }
+
+    // {"age": -1} or [{"age": -1}, {"name": "asc"}]
+    static List<Sort> sorts(Object value) {
+        List<Sort> sorts = new ArrayList<>();
+        if (value == null) return sorts;
+        List<?> keys = value instanceof List<?> list ? list : List.of(value);
+        for (Object key : keys) {
+            if (!(key instanceof Map<?, ?> fields)) throw new IllegalArgumentException("Invalid sort " + key);
+            for (Map.Entry<?, ?> entry : fields.entrySet()) {
+                sorts.add(new Sort(String.valueOf(entry.getKey()), descending(entry.getValue())));
+            }
+        }
+        return sorts;
+    }
+
+    private static boolean descending(Object direction) {
+        if (direction instanceof Number number && number.intValue() != 0) return number.intValue() < 0;
+        if ("asc".equals(direction)) return false;
+        if ("desc".equals(direction)) return true;
+        throw new IllegalArgumentException("Sort direction must be 1, -1, \"asc\" or \"desc\"");
+    }
+
+    private static int number(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value == null) return 0;
+        if (!(value instanceof Number number)) throw new IllegalArgumentException("Query " + key + " must be a number");
+        return number.intValue();
+    }
+}
@@ -0,0 +1,33 @@
+package net.weesli.api.model;
+
+// bounds for an ordered query, a null bound is open, numbers compare by value and strings (ISO dates too) lexicographically
+public record Range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+
+    public static Range all() {
+        return new Range(null, false, null, false);
+    }
+
+    public static Range greaterThan(Object value) {
+        return new Range(value, false, null, false);
+    }
+
+    public static Range atLeast(Object value) {
+        return new Range(value, true, null, false);
+    }
+
+    public static Range lessThan(Object value) {
+        return new Range(null, false, value, false);
+    }
+
+    public static Range atMost(Object value) {
+        return new Range(null, false, value, true);
+    }
+
+    public static Range between(Object from, Object to) { // both ends included
+        return new Range(from, true, to, true);
+    }
+
+    public static Range prefix(String prefix) {
+        return new Range(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+}
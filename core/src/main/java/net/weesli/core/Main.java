@@ -4,11 +4,16 @@ import com.dslplatform.json.DslJson;
 import lombok.Getter;
 import net.weesli.api.database.Collection;
 import net.weesli.api.database.Database;
+import net.weesli.core.cache.CacheManager;
+import net.weesli.core.database.DatabaseImpl;
 import net.weesli.core.database.DatabasePool;
 import net.weesli.core.database.DatabaseProviderImpl;
+import net.weesli.core.index.IndexBuilder;
 import net.weesli.core.index.IndexManager;
 import net.weesli.core.model.DataMeta;
 import net.weesli.core.model.Settings;
+import net.weesli.core.query.ScanPool;
+import net.weesli.core.file.IOScheduler;
 import net.weesli.core.file.WritePool;
 import net.weesli.server.Server;
 import net.weesli.services.json.JsonBase;
@@ -25,6 +30,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class Main {
 
@@ -36,12 +42,15 @@ public class Main {
             core.createDatabase();
             core.createWritePool();
             core.loadAllDatabases();
-            IndexManager.getInstance();
             DatabaseProviderImpl provider = new DatabaseProviderImpl();
             new Thread(() -> new Server(provider).start(), "RozsDB-Server-Thread").start();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> { // register a hook for force save
                 if (core.writePool != null) core.writePool.forceUpdate();
                 IndexManager.getInstance().saveAll();
+                core.cacheManager.saveHotSets();
+                DatabasePool.getInstance().getDatabases().forEach(database -> ((DatabaseImpl) database).getWal().close());
+                core.ioScheduler.shutdown();
+                core.scanPool.shutdown();
                 DatabaseLogger.log(DatabaseLogger.ModuleType.CORE,DatabaseLogger.LogLevel.INFO, "RozsDatabase is shutting down...");
             }));
         }catch (Exception e){
@@ -56,12 +65,20 @@ public class Main {
         private Path databasePath;
         private WritePool writePool;
         private Settings settings;
+        private IOScheduler ioScheduler;
+        private CacheManager cacheManager;
+        private IndexBuilder indexBuilder;
+        private ScanPool scanPool;
 
         public MainInstance() throws InterruptedException {
             log(ModuleType.CORE, DatabaseLogger.LogLevel.INFO, "Starting RozsDatabase...");
             Thread.sleep(500);
             initializeAllFiles();
             settings = new Settings(new File("config/settings.json"));
+            ioScheduler = IOScheduler.fromSettings(settings);
+            cacheManager = CacheManager.fromSettings(settings);
+            indexBuilder = IndexBuilder.fromSettings(settings);
+            scanPool = ScanPool.fromSettings(settings);
             startServices(settings);
         }
 
@@ -88,9 +105,22 @@ public class Main {
                 log(ModuleType.CORE, DatabaseLogger.LogLevel.ERROR, "No database files found!");
                 return;
             }
-            List<File> databases = Arrays.stream(files).toList();
-            databases.forEach(databasePath -> DatabasePool.getInstance().load(databasePath));
-            log(ModuleType.CORE, DatabaseLogger.LogLevel.INFO, "All databases are loaded!");
+            long start = System.nanoTime();
+            DatabasePool pool = DatabasePool.getInstance();
+            List<Database> databases = ioScheduler.invokeAll(Arrays.stream(files)
+                    .filter(File::isDirectory)
+                    .map(file -> (Callable<Database>) () -> pool.load(file))
+                    .toList());
+            IndexManager.getInstance(); // collections restore their metadata while loading
+            List<Callable<Collection>> collections = new ArrayList<>();
+            for (Database database : databases) {
+                for (String name : ((DatabaseImpl) database).getCollectionNames()) {
+                    collections.add(() -> database.getCollection(name));
+                }
+            }
+            ioScheduler.invokeAll(collections); // every collection of every database at once, bounded by the io threads
+            log(ModuleType.CORE, DatabaseLogger.LogLevel.INFO, "All databases are loaded! " + databases.size() + " databases, "
+                    + collections.size() + " collections in " + (System.nanoTime() - start) / 1_000_000 + " ms");
         }
         public void createWritePool() {
             // convert the file to Database
@@ -0,0 +1,166 @@
+package net.weesli.core.cache;
+
+import lombok.Getter;
+import net.weesli.core.model.CacheStats;
+import net.weesli.core.model.Settings;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// one memory budget for the document caches of every open collection, and one for the decoded documents
+public class CacheManager {
+
+    @Getter private final long budget;
+    @Getter private final long decodedBudget; // 0 turns the decoded tier off
+    @Getter private final OffHeapAllocator allocator; // native memory for documents, null keeps them on the heap
+    @Getter private final int hotSetSize; // ids persisted per collection for the warm-up after a restart, 0 turns it off
+    @Getter private final CacheWarmer warmer;
+    private final Set<CollectionDataImpl> caches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong decodedUsed = new AtomicLong();
+    private final ReentrantLock reclaimLock = new ReentrantLock();
+
+    public CacheManager(long budget, long decodedBudget, OffHeapAllocator allocator, int hotSetSize, int warmupPerSecond) {
+        this.budget = Math.max(0, budget);
+        this.decodedBudget = Math.max(0, decodedBudget);
+        this.allocator = allocator;
+        this.hotSetSize = Math.max(0, hotSetSize);
+        this.warmer = new CacheWarmer(Math.max(1, warmupPerSecond));
+    }
+
+    public static CacheManager fromSettings(Settings settings) {
+        long maxMB = settings != null ? settings.getLong("cache", "maxMB", 256) : 256;
+        long decodedMaxMB = settings != null ? settings.getLong("cache", "decodedMaxMB", 64) : 64;
+        String mode = settings != null ? settings.getString("cache", "mode", "heap") : "heap";
+        OffHeapAllocator allocator = null;
+        if (mode.equalsIgnoreCase("offheap") || mode.equalsIgnoreCase("off-heap")) {
+            long slabMB = settings.getLong("cache", "slabMB", 4);
+            // a slab stays with its size class while any chunk of it is used, a tenth more covers the partly used ones
+            allocator = new OffHeapAllocator(maxMB * 1024L * 1024L * 11 / 10, (int) Math.min(1024, Math.max(1, slabMB)) * 1024 * 1024);
+        } else if (!mode.equalsIgnoreCase("heap")) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Unknown cache mode '" + mode + "', using heap");
+        }
+        long hotSetSize = settings != null ? settings.getLong("cache", "hotSetSize", 10_000) : 10_000;
+        long warmupPerSecond = settings != null ? settings.getLong("cache", "warmupPerSecond", 2_000) : 2_000;
+        return new CacheManager(maxMB * 1024L * 1024L, decodedMaxMB * 1024L * 1024L, allocator,
+                (int) Math.min(Integer.MAX_VALUE, hotSetSize), (int) Math.min(Integer.MAX_VALUE, warmupPerSecond));
+    }
+
+    public void register(CollectionDataImpl cache) {
+        caches.add(cache);
+    }
+
+    public void unregister(CollectionDataImpl cache) {
+        caches.remove(cache);
+    }
+
+    void onWeightChange(long delta) {
+        used.addAndGet(delta);
+    }
+
+    void onDecodedWeightChange(long delta) {
+        decodedUsed.addAndGet(delta);
+    }
+
+    // called after a cache grew, takes memory back from the collections that were used least recently
+    void reclaim() {
+        if ((used.get() <= budget && decodedUsed.get() <= decodedBudget) || !reclaimLock.tryLock()) return;
+        try {
+            List<CollectionDataImpl> idleFirst = new ArrayList<>(caches);
+            idleFirst.sort(Comparator.comparingLong(CollectionDataImpl::getLastAccess));
+            for (CollectionDataImpl cache : idleFirst) { // remember what an idle collection is about to lose
+                long excess = used.get() - budget;
+                if (excess <= 0) break;
+                if (excess * 2 >= cache.getCache().getWeightedSize()) cache.saveHotSetAsync();
+            }
+            reclaim(idleFirst, CollectionDataImpl::getCache, used, budget);
+            reclaim(idleFirst, CollectionDataImpl::getDecodedCache, decodedUsed, decodedBudget);
+        } finally {
+            reclaimLock.unlock();
+        }
+    }
+
+    private void reclaim(List<CollectionDataImpl> idleFirst, Function<CollectionDataImpl, WTinyLfuCache<?, ?>> tier, AtomicLong used, long budget) {
+        for (CollectionDataImpl cache : idleFirst) {
+            long excess = used.get() - budget;
+            if (excess <= 0) break;
+            WTinyLfuCache<?, ?> store = tier.apply(cache);
+            if (store != null) store.trimTo(Math.max(0, store.getWeightedSize() - excess));
+        }
+    }
+
+    public void saveHotSets() {
+        caches.forEach(CollectionDataImpl::saveHotSet);
+    }
+
+    public Map<String, WarmupProgress> getWarmups() {
+        return warmer.getWarmups();
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getDecodedUsed() {
+        return decodedUsed.get();
+    }
+
+    // bytes held per collection in both tiers, keyed by database/collection
+    public Map<String, Long> getUsage() {
+        Map<String, Long> usage = new TreeMap<>();
+        for (CollectionDataImpl cache : caches) {
+            long decoded = cache.getDecodedCache() != null ? cache.getDecodedCache().getWeightedSize() : 0;
+            usage.merge(cache.getName(), cache.getCache().getWeightedSize() + decoded, Long::sum);
+        }
+        return usage;
+    }
+
+    public Map<String, CacheStats> getStats() {
+        Map<String, CacheStats> stats = new TreeMap<>();
+        for (CollectionDataImpl cache : caches) {
+            stats.put(cache.getName(), cache.getCacheStats());
+        }
+        return stats;
+    }
+
+    public Map<String, CacheStats> getDecodedStats() {
+        Map<String, CacheStats> stats = new TreeMap<>();
+        for (CollectionDataImpl cache : caches) {
+            CacheStats decoded = cache.getDecodedCacheStats();
+            if (decoded != null) stats.put(cache.getName(), decoded);
+        }
+        return stats;
+    }
+
+    // budgets, usage, per collection stats of both tiers and the warm-ups, as reported by the admin stats action
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("budget", budget);
+        map.put("used", getUsed());
+        map.put("decodedBudget", decodedBudget);
+        map.put("decodedUsed", getDecodedUsed());
+        map.put("usage", getUsage());
+        Map<String, Object> stats = new TreeMap<>();
+        getStats().forEach((name, value) -> stats.put(name, value.toMap()));
+        map.put("collections", stats);
+        Map<String, Object> decoded = new TreeMap<>();
+        getDecodedStats().forEach((name, value) -> decoded.put(name, value.toMap()));
+        map.put("decoded", decoded);
+        Map<String, Object> warmups = new TreeMap<>();
+        getWarmups().forEach((name, progress) -> warmups.put(name, progress.toMap()));
+        map.put("warmups", warmups);
+        if (allocator != null) {
+            Map<String, Object> offHeap = new LinkedHashMap<>();
+            offHeap.put("reserved", allocator.getReserved());
+            offHeap.put("allocated", allocator.getAllocated());
+            offHeap.put("pooledSlabs", allocator.getPooledSlabs());
+            offHeap.put("failedAllocations", allocator.getFailures());
+            map.put("offHeap", offHeap);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,69 @@
+package net.weesli.core.cache;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+// prefetches the persisted hot set of a collection that just opened, at a limited rate so it does not compete with traffic
+public class CacheWarmer {
+
+    private static final long TICK_MS = 100;
+
+    private final ScheduledExecutorService executor;
+    private final int perTick;
+    private final Map<CollectionDataImpl, WarmupProgress> warmups = new ConcurrentHashMap<>();
+
+    public CacheWarmer(int perSecond) {
+        this.perTick = (int) Math.max(1, perSecond * TICK_MS / 1000);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "RozsDB-CacheWarmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public WarmupProgress warm(CollectionDataImpl cache, List<ObjectId> ids) {
+        WarmupProgress progress = new WarmupProgress(cache.getName(), ids.size());
+        warmups.put(cache, progress);
+        Iterator<ObjectId> iterator = ids.iterator();
+        progress.future = executor.scheduleWithFixedDelay(() -> {
+            try {
+                for (int i = 0; i < perTick && progress.getState() == WarmupProgress.State.RUNNING; i++) {
+                    if (!iterator.hasNext()) {
+                        progress.finish(WarmupProgress.State.DONE);
+                        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Warmed up " + progress.getCollection() + ": " + progress.getLoaded()
+                                + " documents in " + progress.toMap().get("elapsedMs") + " ms, hit rate " + cache.getCacheStats().hitRate());
+                        return;
+                    }
+                    if (cache.isCacheFull()) { // the budget belongs to live traffic
+                        progress.getSkipped().addAndGet(progress.getTotal() - progress.getLoaded().get() - progress.getSkipped().get());
+                        progress.finish(WarmupProgress.State.DONE);
+                        return;
+                    }
+                    if (cache.prefetch(iterator.next())) progress.getLoaded().incrementAndGet();
+                    else progress.getSkipped().incrementAndGet();
+                }
+            } catch (Exception e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Warm-up of " + progress.getCollection() + " failed: " + e.getMessage());
+                progress.finish(WarmupProgress.State.CANCELLED);
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        return progress;
+    }
+
+    public void cancel(CollectionDataImpl cache) {
+        WarmupProgress progress = warmups.remove(cache);
+        if (progress != null) progress.finish(WarmupProgress.State.CANCELLED);
+    }
+
+    public Map<String, WarmupProgress> getWarmups() {
+        Map<String, WarmupProgress> result = new TreeMap<>();
+        warmups.values().forEach(progress -> result.put(progress.getCollection(), progress));
+        return result;
+    }
+}
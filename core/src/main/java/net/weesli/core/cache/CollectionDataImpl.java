@@ -1,74 +1,214 @@
 package net.weesli.core.cache;
 
+import lombok.Getter;
 import net.weesli.api.cache.CollectionData;
-import net.weesli.api.database.Collection;
 import net.weesli.api.model.ObjectId;
-import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.Main;
+import net.weesli.core.database.CollectionImpl;
+import net.weesli.core.model.CacheStats;
+import net.weesli.core.model.WriteTask;
+import net.weesli.core.storage.StorageEngine;
 import net.weesli.core.util.CompressUtil;
+import net.weesli.services.json.JsonBase;
 
-import java.io.File;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 
 public class CollectionDataImpl implements CollectionData {
-    private final Collection collection;
+    private static final int ENTRY_OVERHEAD = 96; // node, id and map entry around the payload
 
-    private Map<ObjectId, byte[]> dataStore = Collections.synchronizedMap(new LRUCache<>(1000));
+    private final CollectionImpl collection;
+    private final StorageEngine storage;
+    private final CacheManager cacheManager;
 
+    private final Map<ObjectId, byte[]> dataStore; // heap or off-heap, depending on cache.mode
+    private final WTinyLfuCache<ObjectId, ?> policy; // the cache behind dataStore
+    private final OffHeapCache<ObjectId> offHeapStore; // null in heap mode
+    private final WTinyLfuCache<ObjectId, Decoded> decodedStore; // parsed documents, null when the tier is off
+    @Getter private volatile long lastAccess = System.nanoTime();
 
-    public CollectionDataImpl(Collection collection) {
+
+    public CollectionDataImpl(CollectionImpl collection, StorageEngine storage) {
         this.collection = collection;
+        this.storage = storage;
+        this.cacheManager = Main.core != null ? Main.core.getCacheManager() : CacheManager.fromSettings(null);
+        Runnable onWrite = () -> {
+            lastAccess = System.nanoTime();
+            cacheManager.reclaim();
+        };
+        // every cache may use the whole budget, the manager takes memory back from idle collections when the sum is over it
+        if (cacheManager.getAllocator() != null) {
+            this.offHeapStore = new OffHeapCache<>(cacheManager.getAllocator(), cacheManager.getBudget(), cacheManager::onWeightChange, onWrite);
+            this.policy = offHeapStore.getIndex();
+            this.dataStore = offHeapStore;
+        } else {
+            WTinyLfuCache<ObjectId, byte[]> heapStore = new WTinyLfuCache<>(cacheManager.getBudget(),
+                    (id, value) -> value.length + id.getObjectId().length() * 2 + ENTRY_OVERHEAD, cacheManager::onWeightChange, onWrite, null);
+            this.offHeapStore = null;
+            this.policy = heapStore;
+            this.dataStore = heapStore;
+        }
+        this.decodedStore = cacheManager.getDecodedBudget() == 0 ? null : new WTinyLfuCache<>(cacheManager.getDecodedBudget(),
+                (id, decoded) -> decoded.weight(), cacheManager::onDecodedWeightChange, cacheManager::reclaim, null);
+        cacheManager.register(this);
     }
 
     public byte[] get(ObjectId id) {
+        lastAccess = System.nanoTime();
         byte[] value = dataStore.get(id);
         if (value != null) return value;
+        WriteTask pending = Main.core.getWritePool().getPending(collection, id);
+        if (pending != null) return pending.data(); // not on disk yet, null for a pending delete
         return getDisk(id);
     }
 
+    // lends a read-only view of the stored bytes, off-heap hits are not copied, the view must not escape reader
+    public <T> T read(ObjectId id, Function<ByteBuffer, T> reader) {
+        if (offHeapStore != null) {
+            lastAccess = System.nanoTime();
+            T result = offHeapStore.read(id, reader);
+            if (result != null) return result;
+        }
+        byte[] value = get(id);
+        return value == null ? null : reader.apply(ByteBuffer.wrap(value).asReadOnlyBuffer());
+    }
+
+    // loads a document into the cache without counting a miss, false when there was nothing to load
+    boolean prefetch(ObjectId id) {
+        if (dataStore.containsKey(id) || Main.core.getWritePool().getPending(collection, id) != null) return false;
+        return getDisk(id) != null;
+    }
+
+    public void startWarmup() {
+        if (cacheManager.getHotSetSize() == 0) return;
+        List<ObjectId> ids = HotSet.read(collection.getCollectionPath().toFile());
+        if (!ids.isEmpty()) cacheManager.getWarmer().warm(this, ids);
+    }
+
+    public void saveHotSet() {
+        if (cacheManager.getHotSetSize() == 0 || dataStore.isEmpty()) return;
+        HotSet.write(collection.getCollectionPath().toFile(), new ArrayList<>(policy.hottest(cacheManager.getHotSetSize())));
+    }
+
+    void saveHotSetAsync() {
+        if (Main.core != null) Main.core.getIoScheduler().run(this::saveHotSet);
+        else saveHotSet();
+    }
+
     private byte[] getDisk(ObjectId id) {
-        Path path = new File(collection.getCollectionPath().toFile(), id.getObjectId()).toPath();
-        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
-            long fileSize = channel.size();
-            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-            byte[] value = new byte[(int) fileSize];
-            buffer.get(value);
-            // push the data to the cache
-            dataStore.put(id, value);
-            return CompressUtil.decompress(value);
-        }catch (Exception e) {
-            throw new RuntimeException(e);
+        byte[] value = storage.read(id);
+        if (value != null) {
+            // push the data to the cache, a value written meanwhile wins
+            dataStore.putIfAbsent(id, value);
+            if (Main.core.getWritePool().getPending(collection, id) != null) {
+                dataStore.remove(id, value); // a write was enqueued while reading, this copy may be stale
+            }
+        }
+        return value;
+    }
+
+    // the parsed form of a stored document, callers must not modify it since it is shared between queries
+    public JsonBase decode(ObjectId id, byte[] compressed) {
+        if (decodedStore == null) return new JsonBase(CompressUtil.decompress(compressed));
+        Decoded decoded = decodedStore.get(id);
+        // a cached copy only counts if it was decoded from these exact bytes, so a racing write can not leave a stale one
+        if (decoded != null && (decoded.source() == compressed || Arrays.equals(decoded.source(), compressed))) {
+            return decoded.document();
         }
+        byte[] json = CompressUtil.decompress(compressed);
+        JsonBase document = new JsonBase(json);
+        decodedStore.put(id, new Decoded(compressed, document, json.length * 3 + compressed.length + ENTRY_OVERHEAD));
+        return document;
+    }
+
+    public void invalidate(ObjectId id) {
+        if (decodedStore != null) decodedStore.remove(id);
     }
 
     public Map<ObjectId, byte[]> getDataStore() {
         return dataStore;
     }
 
+    public boolean isCacheFull() {
+        return cacheManager.getUsed() >= cacheManager.getBudget();
+    }
+
+    public CacheStats getCacheStats() {
+        return policy.getStats();
+    }
+
+    public CacheStats getDecodedCacheStats() {
+        return decodedStore != null ? decodedStore.getStats() : null;
+    }
+
+    WTinyLfuCache<ObjectId, ?> getCache() {
+        return policy;
+    }
+
+    WTinyLfuCache<ObjectId, Decoded> getDecodedCache() {
+        return decodedStore;
+    }
+
+    public String getName() {
+        return collection.getDatabase().getName() + "/" + collection.getCollectionName();
+    }
+
+    public void release() { // the collection is closing, its memory goes back to the shared budget
+        cacheManager.getWarmer().cancel(this);
+        saveHotSet();
+        dataStore.clear();
+        if (decodedStore != null) decodedStore.clear();
+        cacheManager.unregister(this);
+    }
+
     @Override
     public Map<ObjectId, byte[]> getAll() { // if user request all data load all data from disk and merge (this map will delete)
         Map<ObjectId,byte[]> map = new HashMap<>(dataStore);
-        for (File file : collection.getCollectionPath().toFile().listFiles()) {
-            ObjectId id = ObjectIdImpl.valueOf(file.getName());
-            if (dataStore.containsKey(id)) {
+        Map<ObjectId, WriteTask> pending = Main.core.getWritePool().getPending(collection);
+        for (ObjectId id : storage.keys()) {
+            if (map.containsKey(id) || pending.containsKey(id)) {
                 continue;
             }
-            try(RandomAccessFile targetAccessFile = new RandomAccessFile(file, "r")){
-                long fileSize = targetAccessFile.length();
-                ByteBuffer buffer = targetAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-                byte[] value = new byte[(int) fileSize];
-                buffer.get(value);
+            byte[] value = storage.read(id);
+            if (value != null) {
                 map.put(id, value);
-            }catch (Exception e) {
-                throw new RuntimeException(e);
             }
         }
+        pending.forEach((id, task) -> {
+            if (task.isDelete()) {
+                map.remove(id);
+            } else {
+                map.put(id, task.data());
+            }
+        });
         return map;
     }
+
+    // every id at this moment, pending inserts included and pending deletes left out
+    public List<ObjectId> snapshotKeys() {
+        Map<ObjectId, WriteTask> pending = Main.core.getWritePool().getPending(collection);
+        Set<ObjectId> keys = new LinkedHashSet<>(storage.keys());
+        pending.forEach((id, task) -> {
+            if (task.isDelete()) keys.remove(id);
+            else keys.add(id);
+        });
+        return new ArrayList<>(keys);
+    }
+
+    // the current bytes without loading them into the cache, a scan would otherwise skew the hit rate and the admission sketch
+    public byte[] peek(ObjectId id) {
+        WriteTask task = Main.core.getWritePool().getPending(collection, id);
+        if (task != null) return task.isDelete() ? null : task.data();
+        return storage.read(id);
+    }
+
+    record Decoded(byte[] source, JsonBase document, int weight) {
+    }
 }
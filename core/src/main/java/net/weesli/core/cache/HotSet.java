@@ -0,0 +1,68 @@
+package net.weesli.core.cache;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// the ids a collection had cached, hottest first, layout: magic(4) count(4) then idLength(2) id per entry, closed by a crc32c
+public class HotSet {
+
+    public static final String FILE_NAME = "hotset.rozs";
+    private static final int MAGIC = 0x52484F54; // RHOT
+
+    public static void write(File directory, List<ObjectId> ids) {
+        File file = new File(directory, FILE_NAME);
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.size() * 16 + 12);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(ids.size());
+            for (ObjectId id : ids) {
+                byte[] key = id.getObjectId().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(key.length);
+                out.write(key);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Failed to save hot set of " + directory.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    public static List<ObjectId> read(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.isFile()) return List.of();
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if (data.length < 12) throw new IOException("file is too short");
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, data.length - 4);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt(data.length - 4) != (int) crc.getValue() || buffer.getInt() != MAGIC) throw new IOException("checksum mismatch");
+            int count = buffer.getInt();
+            List<ObjectId> ids = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[Short.toUnsignedInt(buffer.getShort())];
+                buffer.get(key);
+                ids.add(ObjectIdImpl.valueOf(new String(key, StandardCharsets.UTF_8)));
+            }
+            return ids;
+        } catch (IOException | RuntimeException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Ignoring hot set " + file.getAbsolutePath() + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+}
@@ -1,20 +0,0 @@
-package net.weesli.core.cache;
-
-import java.io.Serial;
-import java.util.LinkedHashMap;
-
-public class LRUCache<K, V> extends LinkedHashMap<K, V> {
-    @Serial
-    private static final long serialVersionUID = 1L;
-    private final int capacity;
-
-    public LRUCache(int capacity) {
-        super(capacity, 0.75f, true);
-        this.capacity = capacity;
-    }
-
-    @Override
-    protected boolean removeEldestEntry(java.util.Map.Entry<K, V> eldest) {
-        return size() > capacity;
-    }
-}
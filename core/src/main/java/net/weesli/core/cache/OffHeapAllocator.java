@@ -0,0 +1,194 @@
+package net.weesli.core.cache;
+
+import lombok.Getter;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out chunks of native memory from direct ByteBuffer slabs. A slab is cut into chunks of one size class
+ * (classes grow by 25%) for as long as any of its chunks is in use, freed chunks go back to the free list of their
+ * slab. A slab whose chunks are all free again goes back to a shared pool any class can take it from, so a class
+ * that filled the slabs once does not keep them from the others. Values larger than a slab are not stored.
+ * An address is slab index << 32 | offset.
+ */
+public class OffHeapAllocator {
+
+    private static final int MIN_CHUNK = 64;
+    private static final long FAILURE_LOG_INTERVAL_MS = 60_000;
+
+    @Getter private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final Slab[] owners; // the slab state of every slab index, guarded by the lock of the class using it
+    private final AtomicInteger slabCount = new AtomicInteger();
+    private final ArrayDeque<Integer> pooled = new ArrayDeque<>(); // empty slabs, guarded by itself
+    private final SizeClass[] classes;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong lastFailureLog = new AtomicLong();
+
+    public OffHeapAllocator(long capacity, int slabSize) {
+        this.slabSize = Math.max(MIN_CHUNK, slabSize);
+        this.slabs = new ByteBuffer[(int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / this.slabSize))];
+        this.owners = new Slab[slabs.length];
+        List<SizeClass> sizes = new ArrayList<>();
+        for (long size = MIN_CHUNK; size < this.slabSize; size = Math.max(size + 8, (size * 5 / 4 + 7) & ~7L)) {
+            sizes.add(new SizeClass((int) size));
+        }
+        sizes.add(new SizeClass(this.slabSize));
+        this.classes = sizes.toArray(new SizeClass[0]);
+    }
+
+    // returns -1 when the value is too large or every slab is taken
+    public long allocate(int length) {
+        int index = classIndex(length);
+        if (index < 0) return -1;
+        SizeClass sizeClass = classes[index];
+        synchronized (sizeClass) {
+            Slab slab = sizeClass.partial.peekFirst();
+            int offset;
+            if (slab != null) {
+                offset = slab.free[--slab.freeCount];
+                if (slab.freeCount == 0) sizeClass.partial.pollFirst();
+            } else {
+                slab = sizeClass.current;
+                if (slab == null || slab.nextOffset + sizeClass.size > slabSize) {
+                    slab = takeSlab(sizeClass);
+                    if (slab == null) {
+                        failed(length);
+                        return -1;
+                    }
+                    sizeClass.current = slab;
+                }
+                offset = slab.nextOffset;
+                slab.nextOffset += sizeClass.size;
+            }
+            slab.live++;
+            allocated.addAndGet(sizeClass.size);
+            return ((long) slab.index << 32) | offset;
+        }
+    }
+
+    public void free(long address, int length) {
+        SizeClass sizeClass = classes[classIndex(length)];
+        synchronized (sizeClass) {
+            Slab slab = owners[(int) (address >>> 32)];
+            allocated.addAndGet(-sizeClass.size);
+            if (--slab.live == 0) { // every chunk is free, the slab can serve any class
+                sizeClass.partial.remove(slab);
+                if (slab == sizeClass.current) sizeClass.current = null;
+                owners[slab.index] = null;
+                synchronized (pooled) {
+                    pooled.push(slab.index);
+                }
+                return;
+            }
+            if (slab.freeCount == slab.free.length) {
+                slab.free = Arrays.copyOf(slab.free, Math.max(16, slab.free.length * 2));
+            }
+            slab.free[slab.freeCount++] = (int) address;
+            if (slab.freeCount == 1) sizeClass.partial.addLast(slab);
+        }
+    }
+
+    public void write(long address, byte[] data) {
+        slabs[(int) (address >>> 32)].put((int) address, data);
+    }
+
+    public void read(long address, byte[] target) {
+        slabs[(int) (address >>> 32)].get((int) address, target);
+    }
+
+    public ByteBuffer view(long address, int length) {
+        return slabs[(int) (address >>> 32)].slice((int) address, length).asReadOnlyBuffer();
+    }
+
+    public int chunkSize(int length) {
+        int index = classIndex(length);
+        return index < 0 ? -1 : classes[index].size;
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReserved() {
+        return (long) slabCount.get() * slabSize;
+    }
+
+    public int getPooledSlabs() {
+        synchronized (pooled) {
+            return pooled.size();
+        }
+    }
+
+    // allocations refused because no slab was left, the value then stays out of the cache
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // an emptied slab from the pool first, a new one while the capacity allows, callers hold the lock of sizeClass
+    private Slab takeSlab(SizeClass sizeClass) {
+        Integer index;
+        synchronized (pooled) {
+            index = pooled.poll();
+        }
+        if (index == null) {
+            index = slabCount.getAndUpdate(count -> count < slabs.length ? count + 1 : count);
+            if (index >= slabs.length) return null;
+            slabs[index] = ByteBuffer.allocateDirect(slabSize);
+        }
+        Slab slab = new Slab(index);
+        owners[index] = slab;
+        return slab;
+    }
+
+    private void failed(int length) {
+        long count = failures.incrementAndGet();
+        long now = System.currentTimeMillis();
+        long last = lastFailureLog.get();
+        if (now - last >= FAILURE_LOG_INTERVAL_MS && lastFailureLog.compareAndSet(last, now)) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Off-heap cache is out of slabs, a " + length + " byte value was not cached ("
+                    + count + " allocations refused so far, " + getReserved() / (1024 * 1024) + " MB reserved)");
+        }
+    }
+
+    private int classIndex(int length) {
+        if (length > slabSize) return -1;
+        int low = 0, high = classes.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].size >= length) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    private static final class SizeClass {
+        private final int size;
+        private final ArrayDeque<Slab> partial = new ArrayDeque<>(); // slabs with freed chunks to hand out again
+        private Slab current; // the slab cut into new chunks
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+    }
+
+    private static final class Slab {
+        private final int index;
+        private int[] free = new int[0];
+        private int freeCount;
+        private int nextOffset;
+        private int live;
+
+        private Slab(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.weesli.core.cache;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+/**
+ * Document cache that keeps payloads in native memory, only a small handle per document stays on the heap.
+ * Values are copied in on put and copied out on get, read(id, reader) lends a read-only view instead.
+ * put returns null instead of the previous value to avoid copying it out.
+ */
+public class OffHeapCache<K> extends AbstractMap<K, byte[]> {
+
+    private static final int HANDLE_OVERHEAD = 64;
+
+    private final OffHeapAllocator allocator;
+    private final WTinyLfuCache<K, Handle> index;
+
+    public OffHeapCache(OffHeapAllocator allocator, long maximumWeight, LongConsumer weightListener, Runnable writeListener) {
+        this.allocator = allocator;
+        this.index = new WTinyLfuCache<>(maximumWeight, (key, handle) -> handle.chunkSize + HANDLE_OVERHEAD,
+                weightListener, writeListener, (key, handle) -> handle.release());
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        return read(key, buffer -> {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        });
+    }
+
+    // the view is only valid inside reader, the memory may be reused once it returns
+    public <T> T read(Object key, Function<ByteBuffer, T> reader) {
+        Handle handle = index.get(key);
+        if (handle == null || !handle.acquire()) return null; // evicted while reading counts as a miss
+        try {
+            return reader.apply(allocator.view(handle.address, handle.length));
+        } finally {
+            handle.release();
+        }
+    }
+
+    @Override
+    public byte[] put(K key, byte[] value) {
+        Handle handle = store(value);
+        if (handle == null) {
+            index.remove(key); // too large or out of native memory, never keep an older copy instead
+            return null;
+        }
+        index.put(key, handle);
+        return null;
+    }
+
+    @Override
+    public byte[] putIfAbsent(K key, byte[] value) {
+        if (index.containsKey(key)) return get(key);
+        Handle handle = store(value);
+        if (handle == null) return null;
+        Handle existing = index.putIfAbsent(key, handle);
+        if (existing != null) {
+            handle.release();
+            return get(key);
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] remove(Object key) {
+        index.remove(key);
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) { // compares content, the stored copy is never the caller's array
+        if (!(value instanceof byte[] expected)) return false;
+        Handle handle = index.get(key);
+        if (handle == null || handle.length != expected.length) return false;
+        Boolean same = read(key, buffer -> buffer.equals(ByteBuffer.wrap(expected)));
+        return same != null && same && index.remove(key, handle);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+    }
+
+    @Override
+    public Set<Entry<K, byte[]>> entrySet() { // a copy, iterating native memory in place would race with eviction
+        Map<K, byte[]> copy = new HashMap<>();
+        for (K key : index.keySet()) {
+            byte[] value = get(key);
+            if (value != null) copy.put(key, value);
+        }
+        return copy.entrySet();
+    }
+
+    WTinyLfuCache<K, Handle> getIndex() {
+        return index;
+    }
+
+    private Handle store(byte[] value) {
+        long address = allocator.allocate(value.length);
+        if (address < 0) return null;
+        allocator.write(address, value);
+        return new Handle(address, value.length, allocator.chunkSize(value.length));
+    }
+
+    // one reference belongs to the cache, readers take one while they use the memory, the last one frees it
+    final class Handle {
+        private final long address;
+        private final int length;
+        private final int chunkSize;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Handle(long address, int length, int chunkSize) {
+            this.address = address;
+            this.length = length;
+            this.chunkSize = chunkSize;
+        }
+
+        private boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) return false;
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                allocator.free(address, length);
+            }
+        }
+    }
+}
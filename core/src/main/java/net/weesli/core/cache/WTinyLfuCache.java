@@ -0,0 +1,464 @@
+package net.weesli.core.cache;
+
+import net.weesli.core.model.CacheStats;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Concurrent cache bounded by total weight (bytes) with a W-TinyLFU policy: new entries go to a small LRU window,
+ * then compete with the coldest entry of the main segmented LRU, and the one seen more often (by a frequency
+ * sketch) stays. Reads never lock, they are recorded in lossy striped buffers and replayed by whichever thread
+ * holds the eviction lock, writes are queued the same way.
+ */
+public class WTinyLfuCache<K, V> extends AbstractMap<K, V> {
+
+    private static final int WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+    private static final int READ_BUFFER_SIZE = 16;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ToIntBiFunction<K, V> weigher;
+    private final LongConsumer weightListener; // told about every change of the weighted size, under the eviction lock
+    private final Runnable writeListener; // runs after each write, outside of any lock
+    private final BiConsumer<K, V> removalListener; // called once for every value that leaves the cache, under the eviction lock
+    private volatile long maximumWeight;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    // guarded by evictionLock
+    private final AccessDeque<K, V> window = new AccessDeque<>();
+    private final AccessDeque<K, V> probation = new AccessDeque<>();
+    private final AccessDeque<K, V> protectedQueue = new AccessDeque<>();
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long weightedSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public WTinyLfuCache(long maximumWeight, ToIntBiFunction<K, V> weigher) {
+        this(maximumWeight, weigher, null, null, null);
+    }
+
+    public WTinyLfuCache(long maximumWeight, ToIntBiFunction<K, V> weigher, LongConsumer weightListener, Runnable writeListener,
+                         BiConsumer<K, V> removalListener) {
+        this.maximumWeight = Math.max(0, maximumWeight);
+        this.weigher = weigher;
+        this.weightListener = weightListener;
+        this.writeListener = writeListener;
+        this.removalListener = removalListener;
+        int stripes = Integer.highestOneBit(Math.min(64, Math.max(4, Runtime.getRuntime().availableProcessors() * 4)) - 1) << 1;
+        @SuppressWarnings("unchecked")
+        ReadBuffer<K, V>[] buffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            buffers[i] = new ReadBuffer<>();
+        }
+        readBuffers = buffers;
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        afterRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        Node<K, V> node = new Node<>(key, value, weigher.applyAsInt(key, value));
+        Node<K, V> previous = data.put(key, node);
+        if (previous != null) {
+            previous.alive = false;
+        }
+        afterWrite(() -> {
+            if (previous != null) unlink(previous);
+            link(node);
+        });
+        return previous != null ? previous.value : null;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        Node<K, V> node = new Node<>(key, value, weigher.applyAsInt(key, value));
+        Node<K, V> existing = data.putIfAbsent(key, node);
+        if (existing != null) {
+            return existing.value;
+        }
+        afterWrite(() -> link(node));
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) return null;
+        node.alive = false;
+        afterWrite(() -> unlink(node));
+        return node.value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) { // values are compared by identity, a newer copy is never removed
+        Node<K, V> node = data.get(key);
+        if (node == null || node.value != value || !data.remove(key, node)) return false;
+        node.alive = false;
+        afterWrite(() -> unlink(node));
+        return true;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        for (K key : data.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                return new Iterator<>() {
+                    private Node<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = nodes.next();
+                        return new SimpleImmutableEntry<>(current.key, current.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        WTinyLfuCache.this.remove(current.key, current.value);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = Math.max(0, maximumWeight);
+        scheduleDrain();
+    }
+
+    public long getWeightedSize() {
+        return weightedSize;
+    }
+
+    // keys worth keeping across a restart, most valuable first: protected, then probation, then the window
+    public List<K> hottest(int limit) {
+        List<K> keys = new ArrayList<>(Math.min(limit, data.size()));
+        evictionLock.lock();
+        try {
+            maintenance();
+            for (AccessDeque<K, V> deque : List.of(protectedQueue, probation, window)) {
+                for (Node<K, V> node = deque.last; node != null && keys.size() < limit; node = node.prev) {
+                    keys.add(node.key);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return keys;
+    }
+
+    // evicts the coldest entries until at most weight is left, used to give memory back to other caches
+    public void trimTo(long weight) {
+        evictionLock.lock();
+        try {
+            maintenance();
+            while (weightedSize > weight) {
+                Node<K, V> victim = probation.first != null ? probation.first : protectedQueue.first != null ? protectedQueue.first : window.first;
+                if (victim == null) break;
+                evictNode(victim);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        if (!writeBuffer.isEmpty()) scheduleDrain();
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), data.size(), weightedSize, maximumWeight);
+    }
+
+    private void afterRead(Node<K, V> node) {
+        int index = (int) mix(Thread.currentThread().threadId()) & (readBuffers.length - 1);
+        if (readBuffers[index].offer(node)) { // readers never wait, a full buffer just drops
+            scheduleDrain();
+        }
+    }
+
+    private void afterWrite(Runnable task) {
+        writeBuffer.add(task);
+        scheduleDrain();
+        if (writeListener != null) writeListener.run();
+    }
+
+    private void scheduleDrain() {
+        // a task queued while another thread drains is picked up by that thread after it unlocks
+        while (evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            if (writeBuffer.isEmpty()) return;
+        }
+    }
+
+    // callers hold evictionLock
+    private void maintenance() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drain(this::onAccess);
+        }
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+        sketch.ensureCapacity(data.size());
+        evict();
+    }
+
+    private void link(Node<K, V> node) {
+        if (node.queue != 0) return;
+        if (!node.alive) { // replaced or removed before its write was applied
+            if (removalListener != null) removalListener.accept(node.key, node.value);
+            return;
+        }
+        sketch.increment(node.key);
+        node.queue = WINDOW;
+        window.addLast(node);
+        windowWeight += node.weight;
+        weightedSize += node.weight;
+        if (weightListener != null) weightListener.accept(node.weight);
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW -> {
+                window.remove(node);
+                windowWeight -= node.weight;
+            }
+            case PROBATION -> probation.remove(node);
+            case PROTECTED -> {
+                protectedQueue.remove(node);
+                protectedWeight -= node.weight;
+            }
+            default -> {
+                return;
+            }
+        }
+        node.queue = 0;
+        weightedSize -= node.weight;
+        if (weightListener != null) weightListener.accept(-node.weight);
+        if (removalListener != null) removalListener.accept(node.key, node.value);
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == 0) return;
+        sketch.increment(node.key);
+        switch (node.queue) {
+            case WINDOW -> window.moveToBack(node);
+            case PROBATION -> { // seen again while on probation, promote it
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                protectedWeight += node.weight;
+                node.queue = PROTECTED;
+                long maxProtected = (maximumWeight - maxWindow()) * 80 / 100;
+                while (protectedWeight > maxProtected && protectedQueue.first != null) {
+                    Node<K, V> demoted = protectedQueue.pollFirst();
+                    protectedWeight -= demoted.weight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+            }
+            case PROTECTED -> protectedQueue.moveToBack(node);
+        }
+    }
+
+    private long maxWindow() {
+        return Math.max(1, maximumWeight / 100);
+    }
+
+    private void evict() {
+        // entries leaving the window become candidates at the tail of probation
+        Node<K, V> candidate = null;
+        long maxWindow = maxWindow();
+        while (windowWeight > maxWindow && window.first != null) {
+            Node<K, V> node = window.pollFirst();
+            windowWeight -= node.weight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) candidate = node;
+        }
+        while (weightedSize > maximumWeight) {
+            Node<K, V> victim = probation.first;
+            if (victim == null || victim == candidate) {
+                victim = protectedQueue.first != null ? protectedQueue.first : victim;
+            }
+            if (victim == null) victim = window.first;
+            if (victim == null) break;
+            if (candidate != null && candidate.queue != PROBATION) candidate = null;
+            if (candidate == null || candidate == victim) {
+                if (candidate != null) candidate = candidate.next;
+                evictNode(victim);
+                continue;
+            }
+            Node<K, V> next = candidate.next;
+            evictNode(admit(candidate.key, victim.key) ? victim : candidate);
+            candidate = next;
+        }
+    }
+
+    private boolean admit(K candidate, K victim) {
+        int candidateFrequency = sketch.frequency(candidate);
+        int victimFrequency = sketch.frequency(victim);
+        if (candidateFrequency > victimFrequency) return true;
+        if (candidateFrequency <= 5) return false;
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0; // keeps a warm victim from being pinned by hash collisions
+    }
+
+    private void evictNode(Node<K, V> node) {
+        if (data.remove(node.key, node)) {
+            evictions.increment();
+        }
+        node.alive = false;
+        unlink(node);
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        return x ^ (x >>> 33);
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final int weight;
+        private volatile boolean alive = true;
+        private int queue; // 0 while not linked, guarded by evictionLock like the links
+        private Node<K, V> prev;
+        private Node<K, V> next;
+
+        private Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static final class AccessDeque<K, V> {
+        private Node<K, V> first;
+        private Node<K, V> last;
+
+        private void addLast(Node<K, V> node) {
+            node.prev = last;
+            node.next = null;
+            if (last == null) first = node;
+            else last.next = node;
+            last = node;
+        }
+
+        private void remove(Node<K, V> node) {
+            if (node.prev == null) first = node.next;
+            else node.prev.next = node.next;
+            if (node.next == null) last = node.prev;
+            else node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        private Node<K, V> pollFirst() {
+            Node<K, V> node = first;
+            if (node != null) remove(node);
+            return node;
+        }
+
+        private void moveToBack(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    private static final class ReadBuffer<K, V> {
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter; // advanced only under evictionLock
+        private final AtomicReferenceArray<Node<K, V>> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+        // true when the buffer should be drained
+        private boolean offer(Node<K, V> node) {
+            long tail = writeCounter.get();
+            long size = tail - readCounter;
+            if (size >= READ_BUFFER_SIZE) return true;
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.set((int) (tail & (READ_BUFFER_SIZE - 1)), node);
+            }
+            return size + 1 >= READ_BUFFER_SIZE / 2;
+        }
+
+        private void drain(Consumer<Node<K, V>> consumer) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & (READ_BUFFER_SIZE - 1));
+                Node<K, V> node = buffer.get(index);
+                if (node == null) break; // slot claimed but not written yet
+                buffer.set(index, null);
+                consumer.accept(node);
+            }
+            readCounter = head;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.weesli.core.cache;
+
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Getter
+public class WarmupProgress {
+
+    public enum State {
+        RUNNING, DONE, CANCELLED
+    }
+
+    private final String collection;
+    private final int total;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger(); // already cached, pending, deleted or no room left
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long finishedAt;
+    private volatile State state = State.RUNNING;
+    volatile ScheduledFuture<?> future;
+
+    public WarmupProgress(String collection, int total) {
+        this.collection = collection;
+        this.total = total;
+    }
+
+    void finish(State state) {
+        if (this.state != State.RUNNING) return;
+        this.state = state;
+        this.finishedAt = System.currentTimeMillis();
+        if (future != null) future.cancel(false);
+    }
+
+    public double getProgress() {
+        return total == 0 ? 1 : (double) (loaded.get() + skipped.get()) / total;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("state", state.name());
+        map.put("total", total);
+        map.put("loaded", loaded.get());
+        map.put("skipped", skipped.get());
+        map.put("progress", getProgress());
+        map.put("elapsedMs", (state == State.RUNNING ? System.currentTimeMillis() : finishedAt) - startedAt);
+        return map;
+    }
+}
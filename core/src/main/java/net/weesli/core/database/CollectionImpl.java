@@ -7,27 +7,47 @@ import lombok.SneakyThrows;
 import net.weesli.api.cache.CollectionData;
 import net.weesli.api.database.Collection;
 import net.weesli.api.database.Database;
+import net.weesli.api.model.Filter;
 import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Pipeline;
+import net.weesli.api.model.Query;
+import net.weesli.api.model.Range;
 import net.weesli.core.Main;
 import net.weesli.core.cache.CollectionDataImpl;
+import net.weesli.core.index.CollectionIndexes;
+import net.weesli.core.index.IndexBuild;
 import net.weesli.core.index.IndexManager;
+import net.weesli.core.index.IndexMetaManager;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.RangeIndex;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.core.index.ValueOrder;
+import net.weesli.core.index.types.CompositeIndex;
+import net.weesli.core.index.types.TextIndex;
 import net.weesli.core.model.DataMeta;
 import net.weesli.core.timeout.TimeoutTask;
 import net.weesli.core.timeout.types.CollectionTimeoutTask;
 import net.weesli.core.exception.CollectionError;
 import net.weesli.core.exception.CollectionTimeOutException;
-import net.weesli.core.file.DatabaseFileManager;
 import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.model.WriteTask;
+import net.weesli.core.query.PipelineRunner;
+import net.weesli.core.query.QueryPlan;
+import net.weesli.core.query.QueryPlanner;
+import net.weesli.core.query.QueryRunner;
+import net.weesli.core.storage.StorageEngine;
+import net.weesli.core.storage.StorageType;
 import net.weesli.core.util.CompressUtil;
-import net.weesli.core.util.IndexMetaUtil;
+import net.weesli.core.wal.WalRecord;
+import net.weesli.core.wal.WriteAheadLog;
 import net.weesli.services.json.JsonBase;
 import net.weesli.services.log.DatabaseLogger;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @Getter@Setter
 public class CollectionImpl implements Collection {
@@ -35,15 +55,16 @@ public class CollectionImpl implements Collection {
     private Database database;
     private Path collectionPath;
     private String collectionName;
-    private boolean timeout;
+    private volatile boolean timeout; // set once closed, every later call fails with CollectionTimeOutException
+    private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock(); // writes share it, close takes it alone
     private TimeoutTask task;
 
     private CollectionData collectionData;
     private Map<ObjectId, byte[]> dataStore;
+    private StorageEngine storage;
+    private CollectionIndexes indexes;
 
     public CollectionImpl(DatabaseImpl databaseImpl, String collectionName) {
-        this.collectionData = new CollectionDataImpl(this);
-        this.dataStore = collectionData.getDataStore();
         this.database = databaseImpl;
         this.collectionName = collectionName;
         this.collectionPath = new File(databaseImpl.getDirectory(), collectionName).toPath();
@@ -51,117 +72,444 @@ public class CollectionImpl implements Collection {
         if (!collectionFile.exists()){
             collectionFile.mkdirs();
         }
-        load();
+        this.storage = StorageType.fromSettings().open(collectionFile);
+        this.collectionData = new CollectionDataImpl(this, storage);
+        this.dataStore = collectionData.getDataStore();
+        List<WalRecord> replayed = load();
+        this.indexes = new CollectionIndexes(this, replayed);
+        ((CollectionDataImpl) collectionData).startWarmup(); // serves traffic right away, the hot set is loaded in the background
         task = new CollectionTimeoutTask(this); // create a cleaner for this collection
-        File metaFile = new File(collectionPath.toFile(), "meta.rozs");
-        IndexMetaUtil.insertDefaultMeta(metaFile);
     }
 
-    private void load(){
-        DatabaseFileManager fileManager = new DatabaseFileManager();
-        fileManager.readAllFilesInDirectory(collectionPath.toFile(), 1000).forEach((key, value) -> dataStore.put(ObjectIdImpl.valueOf(key), value));
+    private List<WalRecord> load(){
+        List<WalRecord> replayed = getWal().replay(collectionName, storage); // writes acknowledged before a crash
+        replayed.forEach(this::restoreRecord);
+        if (!StorageType.isLazyOpen()) { // warm the cache, reading more than it holds would be thrown away
+            CollectionDataImpl data = (CollectionDataImpl) collectionData;
+            for (ObjectId id : storage.keys()) {
+                if (data.isCacheFull()) break;
+                byte[] value = storage.read(id);
+                if (value != null) dataStore.put(id, value);
+            }
+        }
+        return replayed;
+    }
+
+    private void restoreRecord(WalRecord record) {
+        String id = record.id().getObjectId();
+        if (record.isDelete()) {
+            deleteRecord(id);
+            return;
+        }
+        JsonBase object = new JsonBase(CompressUtil.decompress(record.data()));
+        createOrUpdateRecord(id, object.getData().keySet());
     }
 
     @SneakyThrows
     @Override
     public byte[] insertOrUpdate(String id, String src) {
+        closeLock.readLock().lock(); // close waits for the write, or the write sees the timeout
+        try {
+            if (isTimeout()){
+                throw new CollectionTimeOutException("This collection is out of time");
+            }
+            ObjectId objectId = ObjectIdImpl.valueOf(id);
+            JsonBase object = getJsonObject(src);
+            String jsonWithId = appendId(id, object);
+            byte[] data = appendByteFormat(jsonWithId);
+            triggerAction();
+            long walSeq = getWal().append(collectionName, objectId, data);
+            Main.core.getWritePool().enqueueWrite(this, objectId, data, walSeq);
+            dataStore.put(objectId, data); // after the enqueue, so a concurrent disk read can not cache an older copy over it
+            ((CollectionDataImpl) collectionData).invalidate(objectId);
+            indexes.onWrite(objectId, object);
+            createOrUpdateRecord(id, object.getData().keySet());
+            return data;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    @SneakyThrows
+    @Override
+    public byte[] insertOrUpdate(String src) {
+        closeLock.readLock().lock(); // close waits for the write, or the write sees the timeout
+        try {
+            if (isTimeout()){
+                throw new CollectionTimeOutException("This collection is out of time");
+            }
+            ObjectId id = new ObjectIdImpl();
+            JsonBase object = getJsonObject(src);
+            String jsonWithId = appendId(id.getObjectId(), object);
+            byte[] data = appendByteFormat(jsonWithId);
+            triggerAction();
+            long walSeq = getWal().append(collectionName, id, data);
+            Main.core.getWritePool().enqueueWrite(this, id, data, walSeq);
+            dataStore.put(id, data);
+            indexes.onWrite(id, object);
+            createOrUpdateRecord(id.getObjectId(), object.getData().keySet());
+            return data;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+
+    @SneakyThrows
+    @Override
+    public boolean delete(String id){
+        closeLock.readLock().lock(); // close waits for the write, or the write sees the timeout
+        try {
+            if(isTimeout()){
+                throw new CollectionTimeOutException("This collection is out of time");
+            }
+            ObjectId objectId = ObjectIdImpl.valueOf(id);
+            if(!exists(objectId)){
+                return false;
+            }
+            long walSeq = getWal().append(collectionName, objectId, null);
+            Main.core.getWritePool().enqueueWrite(this, objectId, null, walSeq); // the write pool removes it from disk
+            dataStore.remove(objectId);
+            ((CollectionDataImpl) collectionData).invalidate(objectId);
+            indexes.onDelete(objectId);
+            triggerAction();
+            deleteRecord(id);
+            return true;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    @SneakyThrows
+    @Override
+    public byte[] findById(String id){
+        if(isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return collectionData.get(ObjectIdImpl.valueOf(id));
+    }
+
+    @SneakyThrows
+    @Override
+    public List<byte[]> find(String where, Object value) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        List<byte[]> result = Collections.synchronizedList(new ArrayList<>());
+        SecondaryIndex index = indexes.get(where);
+        Set<ObjectId> candidates = index != null ? index.lookup(value) : null;
+        if (candidates != null) { // only the ids indexed under the value are read
+            for (ObjectId id : candidates) {
+                byte[] entry = match(id, where, value);
+                if (entry != null) result.add(entry);
+            }
+            triggerAction();
+            return result;
+        }
+        List<String> ids = new ArrayList<>(getMetaManager().getIdsWithField(collectionName, where));
+        triggerAction();
+        return Main.core.getScanPool().map(ids, id -> match(ObjectIdImpl.valueOf(id), where, value)); // no index, shared out over the scan pool
+    }
+
+    @SneakyThrows
+    @Override
+    public List<byte[]> findRange(String field, Range range, int limit, boolean descending) {
         if (isTimeout()){
             throw new CollectionTimeOutException("This collection is out of time");
         }
-        ObjectId objectId = ObjectIdImpl.valueOf(id);
-        JsonBase object = getJsonObject(src);
-        String jsonWithId = appendId(id, object);
-        byte[] data = appendByteFormat(jsonWithId);
-        dataStore.put(objectId, data);
+        if ((range.from() != null && !ValueOrder.isOrdered(range.from())) || (range.to() != null && !ValueOrder.isOrdered(range.to()))) {
+            throw new IllegalArgumentException("Range bounds must be numbers, strings or booleans");
+        }
         triggerAction();
-        Main.core.getWritePool().enqueueWrite(database, objectId, data);
-        Iterator<String> fields = object.getData().keySet().iterator();
-        List<String> fieldList = new ArrayList<>();
-        while (fields.hasNext()) {
-            fieldList.add(fields.next());
+        List<byte[]> result = new ArrayList<>();
+        if (indexes.get(field) instanceof RangeIndex index) { // walks the index in order and stops at the limit
+            Iterator<ObjectId> ids = index.range(range, descending);
+            Set<ObjectId> seen = new HashSet<>(); // an id being updated may show up at its old and new value
+            while (ids.hasNext() && (limit <= 0 || result.size() < limit)) {
+                ObjectId id = ids.next();
+                if (!seen.add(id)) continue;
+                byte[] entry = collectionData.get(id);
+                if (entry == null) continue;
+                if (ValueOrder.inRange(((CollectionDataImpl) collectionData).decode(id, entry).getData().get(field), range)) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+        List<Map.Entry<Object, byte[]>> matches = new ArrayList<>();
+        for (String key : getMetaManager().getIdsWithField(collectionName, field)) {
+            ObjectId id = ObjectIdImpl.valueOf(key);
+            byte[] entry = collectionData.get(id);
+            if (entry == null) continue;
+            Object value = ((CollectionDataImpl) collectionData).decode(id, entry).getData().get(field);
+            if (ValueOrder.inRange(value, range)) matches.add(Map.entry(value, entry));
         }
-        DataMeta meta = getRecords().stream().filter(r -> r.getId().equals(id)).findFirst().orElse(null);
-        if (meta != null){
-            meta.changeFields(fieldList);
-            meta.changeUpdatedAt(LocalDateTime.now().toString());
-            createOrUpdateRecord(meta);
+        Comparator<Map.Entry<Object, byte[]>> order = (a, b) -> ValueOrder.compare(a.getKey(), b.getKey());
+        matches.sort(descending ? order.reversed() : order);
+        for (Map.Entry<Object, byte[]> match : matches) {
+            if (limit > 0 && result.size() >= limit) break;
+            result.add(match.getValue());
         }
-        return appendByteFormat(jsonWithId);
+        return result;
     }
 
     @SneakyThrows
     @Override
-    public byte[] insertOrUpdate(String src) {
+    public List<String> search(String field, String query, boolean matchAll, int limit) {
         if (isTimeout()){
             throw new CollectionTimeOutException("This collection is out of time");
         }
-        ObjectId id = new ObjectIdImpl();
-        JsonBase object = getJsonObject(src);
-        String jsonWithId = appendId(id.getObjectId(), object);
-        byte[] data = appendByteFormat(jsonWithId);
-        dataStore.put(id, data);
+        if (!(indexes.get(field) instanceof TextIndex index)) {
+            if (indexes.isBuilding(field)) throw new IllegalStateException("Index on " + field + " is still building");
+            throw new IllegalArgumentException("Field " + field + " has no text index");
+        }
         triggerAction();
-        Main.core.getWritePool().enqueueWrite(database, id, data);
-        Iterator<String> fields = object.getData().keySet().iterator();
-        List<String> fieldList = new ArrayList<>();
-        while (fields.hasNext()) {
-            fieldList.add(fields.next());
+        List<String> ids = new ArrayList<>();
+        for (TextIndex.Match match : index.search(Arrays.asList(query.trim().split("\\s+")), matchAll, limit)) {
+            ids.add(match.id().getObjectId());
         }
-        createOrUpdateRecord(new DataMeta(id.getObjectId(), LocalDateTime.now().toString(), LocalDateTime.now().toString(), fieldList));
-        return data;
+        return ids;
     }
 
+    @SneakyThrows
+    @Override
+    public List<byte[]> find(Map<String, Object> where, List<String> projection) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        if (where == null || where.isEmpty()) {
+            throw new IllegalArgumentException("Where cannot be null or empty");
+        }
+        triggerAction();
+        List<String> fields = null;
+        if (projection != null && !projection.isEmpty()) { // a projected document always carries its id
+            Set<String> names = new LinkedHashSet<>(List.of("$id"));
+            names.addAll(projection);
+            fields = new ArrayList<>(names);
+        }
+        List<byte[]> result = new ArrayList<>();
+        CompositeIndex composite = indexes.findComposite(where, fields);
+        if (composite != null && composite.covers(fields)) { // answered from the index entries, no document is read
+            Map<ObjectId, Map<String, Object>> projected = new HashMap<>();
+            for (ObjectId id : composite.match(where, fields, projected)) {
+                result.add(CompressUtil.compress(new JsonBase(projected.get(id)).asJsonText().getBytes(StandardCharsets.UTF_8)));
+            }
+            return result;
+        }
+        java.util.Collection<ObjectId> candidates = composite != null ? composite.match(where, null, null) : null;
+        if (candidates == null) { // the smallest candidate set of any single field index, otherwise of the field metadata
+            for (Map.Entry<String, Object> condition : where.entrySet()) {
+                SecondaryIndex index = indexes.get(condition.getKey());
+                Set<ObjectId> ids = index != null ? index.lookup(condition.getValue()) : null;
+                if (ids != null && (candidates == null || ids.size() < candidates.size())) candidates = ids;
+            }
+        }
+        if (candidates == null) {
+            Set<String> smallest = null;
+            for (String field : where.keySet()) {
+                Set<String> ids = getMetaManager().getIdsWithField(collectionName, field);
+                if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+            }
+            candidates = smallest.stream().map(id -> (ObjectId) ObjectIdImpl.valueOf(id)).toList();
+        }
+        for (ObjectId id : candidates) {
+            byte[] entry = collectionData.get(id);
+            if (entry == null) continue;
+            JsonBase base = ((CollectionDataImpl) collectionData).decode(id, entry);
+            boolean matches = true;
+            for (Map.Entry<String, Object> condition : where.entrySet()) {
+                if (!base.has(condition.getKey()) || !base.isValueMatch(condition.getKey(), condition.getValue())) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (!matches) continue;
+            if (fields == null) {
+                result.add(entry);
+                continue;
+            }
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String field : fields) {
+                if (base.has(field)) values.put(field, base.getData().get(field));
+            }
+            result.add(CompressUtil.compress(new JsonBase(values).asJsonText().getBytes(StandardCharsets.UTF_8)));
+        }
+        return result;
+    }
+
+    @Override
+    public List<byte[]> find(Filter filter, int limit) {
+        return query(new Query(filter, List.of(), 0, limit, null));
+    }
 
     @SneakyThrows
     @Override
-    public boolean delete(String id){
-        if(isTimeout()){
+    public List<byte[]> query(Query query) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return QueryRunner.run(query, getPlanner().plan(query.filter(), query.sort()), (CollectionDataImpl) collectionData);
+    }
+
+    @SneakyThrows
+    @Override
+    public Iterator<byte[]> iterate(Query query) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        Iterator<byte[]> documents = QueryRunner.stream(query, getPlanner().plan(query.filter(), query.sort()), (CollectionDataImpl) collectionData);
+        return new Iterator<>() { // every read counts as an action, a closed collection fails the next read instead of reaching its storage
+            @SneakyThrows
+            @Override
+            public boolean hasNext() {
+                if (isTimeout()){
+                    throw new CollectionTimeOutException("This collection is out of time");
+                }
+                triggerAction();
+                return documents.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return documents.next();
+            }
+        };
+    }
+
+    @SneakyThrows
+    @Override
+    public Map<String, Object> explain(Query query) {
+        if (isTimeout()){
             throw new CollectionTimeOutException("This collection is out of time");
         }
-        if(!dataStore.containsKey(ObjectIdImpl.valueOf(id))){
-            return false;
+        triggerAction();
+        QueryPlan plan = getPlanner().plan(query.filter(), query.sort());
+        Map<String, Object> map = plan.toMap();
+        map.put("sort", query.sort().isEmpty() ? "none" : plan.ordered() ? "index" : "memory");
+        return map;
+    }
+
+    @SneakyThrows
+    @Override
+    public long count(Filter filter) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
         }
-        dataStore.remove(ObjectIdImpl.valueOf(id));
-        DatabaseFileManager fileManager = new DatabaseFileManager();
-        fileManager.deleteFile(new File(collectionPath.toFile(), id)); // force delete in disk
         triggerAction();
-        deleteRecord(id);
-        return true;
+        QueryPlanner planner = getPlanner();
+        Long counted = planner.count(filter); // no document is read
+        if (counted != null) return counted;
+        return QueryRunner.count(filter, planner.plan(filter, List.of()), (CollectionDataImpl) collectionData);
     }
 
     @SneakyThrows
     @Override
-    public byte[] findById(String id){
-        if(isTimeout()){
+    public boolean exists(String id) {
+        if (isTimeout()){
             throw new CollectionTimeOutException("This collection is out of time");
         }
-        if(!dataStore.containsKey(ObjectIdImpl.valueOf(id))){
-            return null;
+        triggerAction();
+        return exists(ObjectIdImpl.valueOf(id));
+    }
+
+    @SneakyThrows
+    @Override
+    public long estimatedCount() {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
         }
         triggerAction();
-        return dataStore.get(ObjectIdImpl.valueOf(id));
+        return getMetaManager().getRecords(collectionName).size();
     }
 
     @SneakyThrows
     @Override
-    public List<byte[]> find(String where, Object value) {
+    public List<Map<String, Object>> aggregate(Pipeline pipeline) {
         if (isTimeout()){
             throw new CollectionTimeOutException("This collection is out of time");
         }
-        Map<ObjectId,byte[]> merged = collectionData.getAll();
-        List<byte[]> result = Collections.synchronizedList(new ArrayList<>());
-        for (DataMeta record : getRecords()) {
-            if (!record.hasField(where)) continue;
-            byte[] entry = merged.get(ObjectIdImpl.valueOf(record.getId()));
-            if (entry == null) continue;
-            byte[] decompressedBytes = CompressUtil.decompress(entry);
-            JsonBase base = new JsonBase(decompressedBytes);
-            if (base.has(where) && base.isValueMatch(where, value)) {
-                result.add(entry);
-            }
+        triggerAction();
+        return PipelineRunner.run(pipeline, getPlanner(), (CollectionDataImpl) collectionData);
+    }
+
+    private QueryPlanner getPlanner() {
+        return new QueryPlanner(indexes, getMetaManager(), collectionName);
+    }
+
+    // the stored document when it still has the value, index entries may lag behind a concurrent write
+    private byte[] match(ObjectId id, String where, Object value) {
+        byte[] entry = collectionData.get(id); // only candidates are loaded, the cache tiers serve hot ones
+        if (entry == null) return null;
+        JsonBase base = ((CollectionDataImpl) collectionData).decode(id, entry);
+        return base.has(where) && base.isValueMatch(where, value) ? entry : null;
+    }
+
+    @SneakyThrows
+    @Override
+    public boolean createIndex(String field) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
         }
         triggerAction();
-        return result;
+        return indexes.create(field, IndexType.HASH);
+    }
+
+    @SneakyThrows
+    @Override
+    public boolean createIndex(String field, String type) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return indexes.create(field, IndexType.fromName(type));
+    }
+
+    @SneakyThrows
+    @Override
+    public boolean createIndex(List<String> fields, List<String> include) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return indexes.createComposite(fields, include);
+    }
+
+    @SneakyThrows
+    @Override
+    public boolean dropIndex(String field) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return indexes.drop(field);
+    }
+
+    @Override
+    public Set<String> getIndexes() {
+        return indexes.getFields();
+    }
+
+    @SneakyThrows
+    @Override
+    public List<Map<String, Object>> getIndexBuilds() {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return indexes.getBuilds().stream().map(IndexBuild::toMap).toList();
+    }
+
+    @SneakyThrows
+    @Override
+    public boolean cancelIndexBuild(String field) {
+        if (isTimeout()){
+            throw new CollectionTimeOutException("This collection is out of time");
+        }
+        triggerAction();
+        return indexes.cancelBuild(field);
     }
 
     @SneakyThrows
@@ -192,6 +540,16 @@ public class CollectionImpl implements Collection {
         return Zstd.compress(bytes);
     }
 
+    private boolean exists(ObjectId id) {
+        WriteTask pending = Main.core.getWritePool().getPending(this, id);
+        if (pending != null) return !pending.isDelete();
+        return dataStore.containsKey(id) || storage.contains(id);
+    }
+
+    public WriteAheadLog getWal() {
+        return ((DatabaseImpl) database).getWal();
+    }
+
     private void triggerAction(){
         task.reset(); // if any action detected in this collection then reset timeout in cleaner
     }
@@ -213,39 +571,52 @@ public class CollectionImpl implements Collection {
     }
 
     @Override
-    public void save() {
-        DatabaseFileManager fileManager = new DatabaseFileManager();
-        dataStore.values().forEach(entry -> {
-            try {
-                fileManager.writeCollection(this);
-            } catch (Exception e) {
-                try {
-                    throw new CollectionError("Error writing collection :" + collectionName);
-                } catch (CollectionError ex) {
-                    throw new RuntimeException(ex);
-                }
-            }
-        });
+    public void save() { // every change goes through the write pool, flushing it persists the collection
+        try {
+            Main.core.getWritePool().flush(this);
+            storage.sync();
+        } catch (Exception e) {
+            throw new RuntimeException(new CollectionError("Error writing collection :" + collectionName));
+        }
     }
 
     @Override
-    public void close() {
+    public synchronized void close() { // flushes and releases the storage, the next access loads the collection again
+        closeLock.writeLock().lock(); // writes past their timeout check finish first, so the flush below sees them
+        try {
+            if (timeout) return;
+            timeout = true; // first, so callers still holding this instance fail instead of reaching the closed storage
+        } finally {
+            closeLock.writeLock().unlock();
+        }
         task.cancel();
+        indexes.close();
         save();
-        dataStore.clear();
+        Main.core.getWritePool().release(this);
+        ((CollectionDataImpl) collectionData).release();
+        database.unregisterCollection(collectionName);
+        storage.close();
     }
 
-    private List<DataMeta> getRecords(){
-        return new ArrayList<>(IndexManager.getInstance().getIndexMetaManager(database.getName()).getRecords(collectionName));
+    // the index store has to be durable before the write-ahead log lets go of the writes it captured
+    public void syncIndexes() { // the index store and the metadata journal, both replay nothing once the wal is released
+        indexes.sync();
+        getMetaManager().sync(collectionName);
     }
 
-    @SneakyThrows
-    private void createOrUpdateRecord(DataMeta dataMeta) {
-        IndexManager.getInstance().getIndexMetaManager(database.getName()).addRecord(collectionName, dataMeta);
+    private IndexMetaManager getMetaManager() {
+        return IndexManager.getInstance().getIndexMetaManager(database.getName());
+    }
+
+    private void createOrUpdateRecord(String id, Set<String> fields) { // an update keeps the creation time
+        long now = System.currentTimeMillis();
+        IndexMetaManager metaManager = getMetaManager();
+        DataMeta meta = metaManager.getRecord(collectionName, id);
+        metaManager.addRecord(collectionName, new DataMeta(id, meta != null ? meta.getCreatedAt() : now, now, metaManager.getShape(collectionName, fields)));
     }
 
     @SneakyThrows
     private void deleteRecord(String id){
-        IndexManager.getInstance().getIndexMetaManager(database.getName()).removeRecord(collectionName, id);
+        getMetaManager().removeRecord(collectionName, id);
     }
 }
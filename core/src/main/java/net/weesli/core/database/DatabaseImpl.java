@@ -3,6 +3,10 @@ package net.weesli.core.database;
 import lombok.Getter;
 import net.weesli.api.database.Collection;
 import net.weesli.api.database.Database;
+import net.weesli.core.Main;
+import net.weesli.core.file.IOScheduler;
+import net.weesli.core.wal.Durability;
+import net.weesli.core.wal.WriteAheadLog;
 import net.weesli.services.log.DatabaseLogger;
 import org.jetbrains.annotations.NotNull;
 
@@ -11,6 +15,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @Getter
 public class DatabaseImpl implements Database {
@@ -18,8 +25,11 @@ public class DatabaseImpl implements Database {
     private final String name;
     private final File directory;
 
-    private final List<Collection> collections = new ArrayList<>();
+    private final List<Collection> collections = new CopyOnWriteArrayList<>(); // collections load in parallel
     private final List<String> collectionNames = new ArrayList<>();
+    private final ConcurrentHashMap<String, Object> loadLocks = new ConcurrentHashMap<>();
+
+    private final WriteAheadLog wal;
 
     public DatabaseImpl(String name, @NotNull File directory) {
         this.name = name;
@@ -27,10 +37,12 @@ public class DatabaseImpl implements Database {
         for (File path : Objects.requireNonNull(directory.listFiles())) {
             if (path.isDirectory()) {
                 collectionNames.add(path.getName());
-            } else {
+            } else if (!WriteAheadLog.isLogFile(path.getName())) {
                 DatabaseLogger.log(DatabaseLogger.ModuleType.CORE, DatabaseLogger.LogLevel.ERROR, "Invalid file found in database directory: " + path.getAbsolutePath());
             }
         }
+        this.wal = new WriteAheadLog(directory, Durability.fromSettings(), Durability.flushIntervalFromSettings(), Durability.fileSizeFromSettings());
+        wal.retainCollections(collectionNames);
     }
 
     public void addCollection(CollectionImpl collection) {
@@ -44,34 +56,43 @@ public class DatabaseImpl implements Database {
         }
         if (!file.isDirectory()) return null;
         DatabaseImpl databaseImpl = new DatabaseImpl(file.getName(), file);
-        for (File path : Objects.requireNonNull(file.listFiles())) {
-            if (path.isDirectory()) {
-                String name = path.getName();
-                databaseImpl.addCollection(new CollectionImpl(databaseImpl, name));
-            } else {
-                DatabaseLogger.log(DatabaseLogger.ModuleType.CORE, DatabaseLogger.LogLevel.ERROR, "Invalid file found in database directory: " + path.getAbsolutePath());
-            }
-        }
+        IOScheduler scheduler = Main.core != null ? Main.core.getIoScheduler() : new IOScheduler(1, 1);
+        scheduler.invokeAll(databaseImpl.getCollectionNames().stream()
+                .map(name -> (Callable<Collection>) () -> databaseImpl.getCollection(name))
+                .toList());
+        if (Main.core == null) scheduler.shutdown();
         return databaseImpl;
     }
 
     public void load(String collectionName){
+        long start = System.nanoTime();
         addCollection(new CollectionImpl(this, collectionName));
+        DatabaseLogger.log(DatabaseLogger.ModuleType.CORE, DatabaseLogger.LogLevel.INFO, "Collection " + name + "/" + collectionName
+                + " loaded in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
     public Collection getCollection(String name){
         if (collectionNames.contains(name)){ // does this collection really exist in this database
-            Optional<Collection> collection = collections.stream().filter(c -> c.getCollectionName().equals(name)).findFirst();
+            Optional<Collection> collection = findLoaded(name);
             if (collection.isPresent()){ // if it is currently registered, give it directly in the registered format
                 return collection.get();
-            }else { // if it is not registered, load collection and again try
-                load(name);
-                return getCollection(name);
             }
+            synchronized (loadLocks.computeIfAbsent(name, key -> new Object())) { // concurrent callers wait for a single load
+                collection = findLoaded(name);
+                if (collection.isEmpty()) { // if it is not registered, load collection and again try
+                    load(name);
+                    collection = findLoaded(name);
+                }
+            }
+            return collection.orElse(null);
         }
         return null;
     }
 
+    private Optional<Collection> findLoaded(String name) {
+        return collections.stream().filter(c -> c.getCollectionName().equals(name)).findFirst();
+    }
+
     @Override
     public void unregisterCollection(String collectionName) {
         Optional<Collection> collection = collections.stream().filter(c -> c.getCollectionName().equals(collectionName)).findFirst();
@@ -12,7 +12,7 @@ public class DatabasePool {
 
     private static final ConcurrentHashMap<String, Database> dataStore = new ConcurrentHashMap<>();
 
-    public static DatabasePool getInstance() {
+    public static synchronized DatabasePool getInstance() {
         if (instance == null) {
             instance = new DatabasePool();
         }
@@ -20,21 +20,11 @@ public class DatabasePool {
     }
 
     public Database load(String name) {
-        Database database = dataStore.get(name);
-        if (database == null) {
-            database = new DatabaseImpl(name, new File(name));
-            dataStore.put(name, database);
-        }
-        return database;
+        return dataStore.computeIfAbsent(name, key -> new DatabaseImpl(key, new File(key)));
     }
 
     public Database load(File file) {
-        Database database = dataStore.get(file.getName());
-        if (database == null) {
-            database = new DatabaseImpl(file.getName(), file);
-            dataStore.put(file.getName(), database);
-        }
-        return database;
+        return dataStore.computeIfAbsent(file.getName(), key -> new DatabaseImpl(key, file));
     }
 
     public List<Database> getDatabases() {
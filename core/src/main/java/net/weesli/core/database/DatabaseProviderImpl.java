@@ -5,7 +5,9 @@ import net.weesli.api.DatabaseProvider;
 import net.weesli.api.database.Database;
 import net.weesli.core.Main;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DatabaseProviderImpl implements DatabaseProvider { // this class giving to server module for drivers
     @Override
@@ -17,4 +19,12 @@ public class DatabaseProviderImpl implements DatabaseProvider { // this class gi
     public CoreSettings getCoreSettings() {
         return Main.core.getSettings();
     }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        if (Main.core.getWritePool() != null) stats.put("writePool", Main.core.getWritePool().getMetrics().toMap());
+        if (Main.core.getCacheManager() != null) stats.put("cache", Main.core.getCacheManager().toMap());
+        return stats;
+    }
 }
@@ -3,6 +3,7 @@ package net.weesli.core.file;
 import lombok.SneakyThrows;
 import net.weesli.api.database.Collection;
 import net.weesli.api.model.ObjectId;
+import net.weesli.core.Main;
 import net.weesli.services.log.DatabaseLogger;
 import org.jetbrains.annotations.NotNull;
 
@@ -16,16 +17,24 @@ import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
 public class DatabaseFileManager {
-    private final ExecutorService executorService;
+    private final IOScheduler scheduler;
+    private final boolean ownsScheduler;
     private static final int SMALL_FILE_THRESHOLD = 1024 * 1024;
+    private static final Set<String> RESERVED_EXTENSIONS = Set.of(".rozs", ".rseg", ".rhint", ".rmeta", ".rjnl", ".ridx", ".tmp");
 
     public DatabaseFileManager(int threadPoolSize) {
-        this.executorService = Executors.newFixedThreadPool(threadPoolSize);
+        this.scheduler = new IOScheduler(threadPoolSize, 1024);
+        this.ownsScheduler = true;
     }
 
-    public DatabaseFileManager() {
-        this(Runtime.getRuntime().availableProcessors() * 2);
+    public DatabaseFileManager(IOScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.ownsScheduler = false;
+    }
 
+    public DatabaseFileManager() { // shares the process-wide scheduler, a pool per instance leaked threads
+        this.scheduler = Main.core != null ? Main.core.getIoScheduler() : new IOScheduler(Runtime.getRuntime().availableProcessors() * 2, 1024);
+        this.ownsScheduler = Main.core == null;
     }
 
     @SneakyThrows
@@ -61,6 +70,16 @@ public class DatabaseFileManager {
         }
     }
 
+    public static boolean isDataFile(File file) { // skip metadata and storage engine files placed next to documents
+        if (!file.isFile()) return false;
+        String name = file.getName();
+        if (name.contains("meta")) return false;
+        for (String extension : RESERVED_EXTENSIONS) {
+            if (name.endsWith(extension)) return false;
+        }
+        return true;
+    }
+
     public static byte[] read(File file) {
         if (!file.isFile()) throw new IllegalArgumentException("Path is not a file");
         return read(file, Integer.MAX_VALUE);
@@ -99,7 +118,7 @@ public class DatabaseFileManager {
         }
 
         Map<Boolean, List<File>> partitionedFiles = Arrays.stream(files)
-                .filter(File::isFile)
+                .filter(DatabaseFileManager::isDataFile)
                 .collect(Collectors.partitioningBy(f -> f.length() < SMALL_FILE_THRESHOLD));
 
         ConcurrentMap<String, byte[]> results = new ConcurrentHashMap<>();
@@ -125,9 +144,8 @@ public class DatabaseFileManager {
     private CompletableFuture<Void> processFilesInParallel(List<File> files, int maxSizePerFileMB,
                                                            ConcurrentMap<String, byte[]> results) {
         List<CompletableFuture<Void>> futures = files.stream()
-                .map(file -> CompletableFuture.runAsync(() -> {
+                .map(file -> scheduler.run(() -> {
                     try {
-                        if (file.getName().contains("meta")) return;
                         byte[] content = read(file, maxSizePerFileMB);
                         if (content != null) {
                             results.put(file.getName(), content);
@@ -136,7 +154,7 @@ public class DatabaseFileManager {
                         DatabaseLogger.log(DatabaseLogger.ModuleType.CORE, DatabaseLogger.LogLevel.ERROR,
                                 "Error processing file " + file.getName() + ": " + e.getMessage());
                     }
-                }, executorService))
+                }))
                 .toList();
 
         return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
@@ -148,9 +166,8 @@ public class DatabaseFileManager {
         Semaphore semaphore = new Semaphore(maxConcurrent);
 
         List<CompletableFuture<Void>> futures = files.stream()
-                .map(file -> CompletableFuture.runAsync(() -> {
+                .map(file -> scheduler.run(() -> {
                     try {
-                        if (file.getName().contains("meta")) return;
                         semaphore.acquire();
                         byte[] content = read(file, maxSizePerFileMB);
                         if (content != null) {
@@ -162,7 +179,7 @@ public class DatabaseFileManager {
                     } finally {
                         semaphore.release();
                     }
-                }, executorService))
+                }))
                 .collect(Collectors.toList());
 
         return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
@@ -193,9 +210,9 @@ public class DatabaseFileManager {
         entries.forEach((key, value) -> {
             File targetFile = new File(collectionDir, key.getObjectId().toString());
             if (targetFile.getName().contains("meta")) return;
-            futures.add(CompletableFuture.runAsync(() -> {
+            futures.add(scheduler.run(() -> {
                 writeIfChanged(value, targetFile);
-            }, executorService));
+            }));
         });
         return futures;
     }
@@ -215,14 +232,8 @@ public class DatabaseFileManager {
 
 
     public void shutdown() {
-        executorService.shutdown();
-        try {
-            if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
+        if (ownsScheduler) {
+            scheduler.shutdown();
         }
     }
 
@@ -0,0 +1,107 @@
+package net.weesli.core.file;
+
+import lombok.Getter;
+import net.weesli.core.model.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// process-wide pool for disk work, its size bounds how many loads and reads hit the disk at once
+@Getter
+public class IOScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+
+    public IOScheduler(int threads, int queueSize) {
+        this.threads = Math.max(1, threads);
+        AtomicInteger counter = new AtomicInteger();
+        // a full queue makes the submitting thread run the task itself instead of queueing without limit
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                r -> {
+                    Thread thread = new IOThread(r, "RozsDB-IO-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static IOScheduler fromSettings(Settings settings) {
+        int defaultThreads = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long threads = settings != null ? settings.getLong("io", "threads", defaultThreads) : defaultThreads;
+        long queueSize = settings != null ? settings.getLong("io", "queueSize", 1024) : 1024;
+        return new IOScheduler((int) threads, (int) Math.min(Integer.MAX_VALUE, queueSize));
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        if (isIOThread()) { // waiting on the pool from inside it can use up every thread, run nested work inline
+            try {
+                return CompletableFuture.completedFuture(task.call());
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<Void> run(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // runs every task and waits for all of them, the first failure is rethrown
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        RuntimeException failure = null;
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add(future.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException runtime ? runtime : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    public static boolean isIOThread() {
+        return Thread.currentThread() instanceof IOThread;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class IOThread extends Thread {
+        private IOThread(Runnable task, String name) {
+            super(task, name);
+        }
+    }
+}
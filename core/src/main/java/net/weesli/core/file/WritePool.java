@@ -1,83 +1,236 @@
 package net.weesli.core.file;
 
 import lombok.Getter;
-import net.weesli.api.DatabaseProvider;
-import net.weesli.api.database.Collection;
-import net.weesli.api.database.Database;
 import net.weesli.api.model.ObjectId;
-import net.weesli.core.database.DatabaseImpl;
-import net.weesli.core.database.DatabasePool;
+import net.weesli.core.Main;
+import net.weesli.core.database.CollectionImpl;
+import net.weesli.core.model.WritePoolMetrics;
 import net.weesli.core.model.WriteTask;
+import net.weesli.core.storage.StorageEngine;
+import net.weesli.core.wal.WriteAheadLog;
+import net.weesli.services.log.DatabaseLogger;
 
-import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Getter
-public class WritePool extends DatabaseFileManager {
+public class WritePool {
 
-    private final ScheduledExecutorService scheduler;
-    private final ScheduledExecutorService threadPool;
+    private static final long RETRY_DELAY_MS = 100;
+    private static final long MAX_RETRY_DELAY_MS = 30_000;
 
-    private final BlockingQueue<WriteTask> writeQueue;
-    private final int BATCH_SIZE = 100;
+    private final ExecutorService threadPool;
+    private final ScheduledExecutorService retryScheduler;
+    private final ConcurrentHashMap<CollectionImpl, Partition> partitions = new ConcurrentHashMap<>();
+    private final Semaphore capacity; // high-water mark, enqueueWrite blocks while the pool is full
+    private final int batchSize;
+
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder flushed = new LongAdder();
+    private final LongAdder flushBatches = new LongAdder();
+    private final LongAdder flushLatencyNanos = new LongAdder();
+    private final AtomicLong maxFlushLatencyNanos = new AtomicLong();
 
     public WritePool() {
-        scheduler = Executors.newScheduledThreadPool(1);
-        threadPool = Executors.newScheduledThreadPool(10);
-        writeQueue = new LinkedBlockingQueue<>();
-        start();
+        threadPool = Executors.newFixedThreadPool(10, r -> {
+            Thread thread = new Thread(r, "RozsDB-WritePool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "RozsDB-WritePool-Retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long highWaterMark = Main.core != null ? Main.core.getSettings().getLong("writePool", "highWaterMark", 100_000) : 100_000;
+        capacity = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, highWaterMark)));
+        batchSize = (int) Math.max(1, Main.core != null ? Main.core.getSettings().getLong("writePool", "batchSize", 500) : 500);
+    }
+
+    public void enqueueWrite(CollectionImpl collection, ObjectId objectId, byte[] data, long walSeq) {
+        WriteTask task = new WriteTask(collection, objectId, data, walSeq);
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Failed to enqueue write task", e);
+        }
+        enqueued.increment();
+        Partition partition = partitions.computeIfAbsent(collection, Partition::new);
+        long[] superseded = {-1};
+        WriteTask result = partition.pending.merge(objectId, task, (queued, added) -> {
+            WriteTask kept = queued.merge(added);
+            superseded[0] = kept.walSeq() == added.walSeq() ? queued.walSeq() : added.walSeq();
+            return kept;
+        });
+        if (result != task) { // coalesced into a write that is still waiting, only the latest value is written
+            merged.increment();
+            capacity.release();
+            collection.getWal().release(superseded[0]);
+        } else {
+            queueDepth.incrementAndGet();
+        }
+        schedule(partition);
     }
 
-    public void start() {
-        Runnable runnable = () -> {
-            threadPool.submit(() -> {
-                try {
-                    processWriteQueue();
-                } catch (Exception e) {
-                    e.printStackTrace();
+    // the newest value that is queued or being written for this id, null when the disk is up to date
+    public WriteTask getPending(CollectionImpl collection, ObjectId objectId) {
+        Partition partition = partitions.get(collection);
+        if (partition == null) return null;
+        WriteTask task = partition.pending.get(objectId);
+        return task != null ? task : partition.inFlight.get(objectId);
+    }
+
+    public Map<ObjectId, WriteTask> getPending(CollectionImpl collection) {
+        Partition partition = partitions.get(collection);
+        if (partition == null) return Map.of();
+        Map<ObjectId, WriteTask> result = new HashMap<>(partition.inFlight);
+        result.putAll(partition.pending);
+        return result;
+    }
+
+    private void schedule(Partition partition) {
+        if (partition.scheduled.compareAndSet(false, true)) {
+            threadPool.execute(() -> {
+                while (true) {
+                    boolean drained = drain(partition, false);
+                    partition.scheduled.set(false);
+                    // a write that arrived after the last drain but before the flag was cleared, a failed drain waits for its retry
+                    if (!drained || partition.pending.isEmpty() || !partition.scheduled.compareAndSet(false, true)) break;
                 }
             });
-        };
-        scheduler.scheduleAtFixedRate(runnable, 0, 1, TimeUnit.MINUTES);
+        }
     }
-    private void processWriteQueue() {
+
+    // false when the partition is backing off after a failure, a retry is scheduled then
+    private boolean drain(Partition partition, boolean force) {
+        partition.lock.lock();
+        try {
+            if (!force && System.nanoTime() < partition.retryAt) return false;
+            while (!partition.pending.isEmpty()) {
+                flushBatch(partition);
+            }
+            partition.failures = 0;
+            return true;
+        } catch (Exception e) {
+            long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(partition.failures++, 10));
+            partition.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Write pool failed to flush " + partition.collection.getCollectionName()
+                    + ", retrying in " + delay + " ms: " + e.getMessage());
+            retryScheduler.schedule(() -> schedule(partition), delay, TimeUnit.MILLISECONDS);
+            return false;
+        } finally {
+            partition.lock.unlock();
+        }
+    }
+
+    // callers hold the partition lock
+    private void flushBatch(Partition partition) {
         List<WriteTask> batch = new ArrayList<>();
-        writeQueue.drainTo(batch, BATCH_SIZE);
-        if (!batch.isEmpty()) {
-            batch.forEach(task -> {
-                for (Collection collection : task.database().getCollections()) {
-                    File file = new File(collection.getCollectionPath().toFile(), task.objectId() + "");
-                    write(task.data(), file);
+        for (Map.Entry<ObjectId, WriteTask> entry : partition.pending.entrySet()) {
+            WriteTask task = entry.getValue();
+            partition.inFlight.put(entry.getKey(), task); // stays visible to readers until it is on disk
+            if (!partition.pending.remove(entry.getKey(), task)) { // merged with a newer write, next round picks it up
+                partition.inFlight.remove(entry.getKey(), task);
+                continue;
+            }
+            batch.add(task);
+            if (batch.size() >= batchSize) break;
+        }
+        if (batch.isEmpty()) return;
+        try {
+            StorageEngine storage = partition.collection.getStorage();
+            for (WriteTask task : batch) {
+                if (task.isDelete()) {
+                    storage.delete(task.objectId());
+                } else {
+                    storage.write(task.objectId(), task.data());
                 }
-            });
+            }
+            storage.sync(); // one flush per batch instead of one per document
+            partition.collection.syncIndexes();
+        } catch (Exception e) {
+            requeue(partition, batch); // back in pending before leaving inFlight, readers never fall through to the old value on disk
+            batch.forEach(task -> partition.inFlight.remove(task.objectId(), task));
+            throw e;
+        }
+        WriteAheadLog wal = partition.collection.getWal();
+        long now = System.nanoTime();
+        for (WriteTask task : batch) {
+            wal.release(task.walSeq());
+            long latency = now - task.enqueuedAt();
+            flushLatencyNanos.add(latency);
+            maxFlushLatencyNanos.accumulateAndGet(latency, Math::max);
         }
+        batch.forEach(task -> partition.inFlight.remove(task.objectId(), task));
+        queueDepth.addAndGet(-batch.size());
+        capacity.release(batch.size());
+        wal.checkpoint();
+        flushed.add(batch.size());
+        flushBatches.increment();
     }
 
-    public void enqueueWrite(Database database, ObjectId objectId, byte[] data) {
-        WriteTask task = new WriteTask(database, objectId, data);
-        try {
-            writeQueue.put(task);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Failed to enqueue write task", e);
+    // a write that came in meanwhile is merged in as enqueueWrite does, the later one in the wal wins
+    private void requeue(Partition partition, List<WriteTask> batch) {
+        for (WriteTask task : batch) {
+            long[] superseded = {-1};
+            partition.pending.merge(task.objectId(), task, (queued, failed) -> {
+                WriteTask kept = failed.merge(queued);
+                superseded[0] = kept.walSeq() == queued.walSeq() ? failed.walSeq() : queued.walSeq();
+                return kept;
+            });
+            if (superseded[0] >= 0) {
+                merged.increment();
+                queueDepth.decrementAndGet();
+                capacity.release();
+                partition.collection.getWal().release(superseded[0]);
+            }
         }
     }
 
+    public void flush(CollectionImpl collection) {
+        Partition partition = partitions.get(collection);
+        if (partition != null) drain(partition, true);
+    }
+
+    public void release(CollectionImpl collection) { // flush and forget a collection that is being closed
+        flush(collection);
+        partitions.remove(collection);
+    }
+
+    public WritePoolMetrics getMetrics() {
+        long count = flushed.sum();
+        return new WritePoolMetrics(queueDepth.get(), enqueued.sum(), merged.sum(), count, flushBatches.sum(),
+                count == 0 ? 0 : flushLatencyNanos.sum() / 1_000_000.0 / count,
+                maxFlushLatencyNanos.get() / 1_000_000.0);
+    }
+
     public void stop() {
-        scheduler.shutdown();
         threadPool.shutdown();
+        retryScheduler.shutdown();
     }
 
     public void forceUpdate() {
-        List<WriteTask> allTasks = new ArrayList<>();
-        writeQueue.drainTo(allTasks);
+        partitions.values().forEach(partition -> drain(partition, true));
+    }
 
-        allTasks.forEach(task -> {
-            for (Collection collection : task.database().getCollections()) {
-                File file = new File(collection.getCollectionPath().toFile(), task.objectId() + "");
-                write(task.data(), file);
-            }
-        });
+    private static final class Partition {
+        private final CollectionImpl collection;
+        private final ConcurrentHashMap<ObjectId, WriteTask> pending = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<ObjectId, WriteTask> inFlight = new ConcurrentHashMap<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ReentrantLock lock = new ReentrantLock();
+        private int failures; // flushes failed in a row, guarded by lock
+        private volatile long retryAt; // nanoTime before which only a forced drain writes
+
+        private Partition(CollectionImpl collection) {
+            this.collection = collection;
+        }
     }
 }
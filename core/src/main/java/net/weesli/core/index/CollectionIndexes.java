@@ -0,0 +1,347 @@
+package net.weesli.core.index;
+
+import lombok.Getter;
+import net.weesli.api.model.Filter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.Main;
+import net.weesli.core.cache.CollectionDataImpl;
+import net.weesli.core.database.CollectionImpl;
+import net.weesli.core.index.types.BitmapIndex;
+import net.weesli.core.index.types.CompositeIndex;
+import net.weesli.core.util.CompressUtil;
+import net.weesli.core.util.IndexMetaUtil;
+import net.weesli.core.wal.WalRecord;
+import net.weesli.services.json.JsonBase;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// the secondary indexes of one collection, restored from the index store on open, anything it does not cover is built in the background
+public class CollectionIndexes {
+    public static final String FILE_NAME = "indexes.rozs";
+
+    private final CollectionImpl collection;
+    private final File file;
+    private final ConcurrentHashMap<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, IndexBuild> builds = new ConcurrentHashMap<>(); // the last build per field, an index serves once it is ready
+    @Getter private final DocumentOrdinals ordinals = new DocumentOrdinals();
+    private volatile boolean tracking; // the live ordinals are only kept while a bitmap index exists
+    private volatile IndexStore store; // only while the collection has indexes
+
+    // replayed are the write-ahead log records applied to the documents on open, the index store may not have seen them
+    public CollectionIndexes(CollectionImpl collection, List<WalRecord> replayed) {
+        this.collection = collection;
+        this.file = new File(collection.getCollectionPath().toFile(), FILE_NAME);
+        load();
+        for (WalRecord record : replayed) {
+            if (record.isDelete()) onDelete(record.id());
+            else onWrite(record.id(), new JsonBase(CompressUtil.decompress(record.data())));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        JsonBase node = IndexMetaUtil.getMeta(file);
+        if (node == null || node.getAsList("indexes", Map.class) == null) return;
+        List<SecondaryIndex> loaded = new ArrayList<>();
+        for (Map<String, Object> definition : node.getAsList("indexes", Map.class)) {
+            String field = (String) definition.get("field");
+            try {
+                IndexType type = IndexType.fromName(String.valueOf(definition.get("type")));
+                loaded.add(instantiate(field, type, definition));
+            } catch (IllegalArgumentException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, e.getMessage() + " on " + getName() + "." + field + ", skipped");
+            }
+        }
+        if (loaded.isEmpty()) return;
+        tracking = loaded.stream().anyMatch(index -> index instanceof BitmapIndex);
+        store = openStore(false);
+        store.setFields(sourceFields(loaded));
+        List<SecondaryIndex> restored = loaded.stream().filter(index -> store.getCovered().containsAll(index.getSourceFields())).toList();
+        if (!restored.isEmpty()) restore(restored);
+        List<SecondaryIndex> missing = loaded.stream().filter(index -> !restored.contains(index)).toList();
+        if (!missing.isEmpty()) build(missing);
+    }
+
+    private void restore(List<SecondaryIndex> targets) {
+        long start = System.currentTimeMillis();
+        if (targets.stream().anyMatch(index -> index instanceof BitmapIndex)) store.forEach((id, fields) -> ordinals.add(id));
+        targets.parallelStream().forEach(index -> store.forEach(index::putIfAbsent)); // independent structures, one thread each
+        for (SecondaryIndex index : targets) indexes.put(index.getField(), index);
+        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Indexes " + getName() + "." + targets.stream().map(SecondaryIndex::getField).toList()
+                + " restored, " + store.size() + " documents in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // a new store starts empty, leftovers of an earlier one could hold documents deleted since
+    private IndexStore openStore(boolean fresh) {
+        File directory = collection.getCollectionPath().toFile();
+        long checkpointMB = Main.core != null && Main.core.getSettings() != null ? Main.core.getSettings().getLong("index", "checkpointMB", 8) : 8;
+        IndexStore opened = new IndexStore(directory, Math.max(1, checkpointMB) * 1024L * 1024L);
+        if (fresh && opened.exists()) {
+            opened.delete();
+            opened = new IndexStore(directory, Math.max(1, checkpointMB) * 1024L * 1024L);
+        }
+        opened.open();
+        return opened;
+    }
+
+    private static Set<String> sourceFields(java.util.Collection<SecondaryIndex> indexes) {
+        Set<String> fields = new HashSet<>();
+        indexes.forEach(index -> fields.addAll(index.getSourceFields()));
+        return fields;
+    }
+
+    public boolean create(String field, IndexType type) {
+        if (field == null || field.isBlank()) {
+            throw new IllegalArgumentException("Index field cannot be null or empty");
+        }
+        return create(instantiate(field, type, Map.of()));
+    }
+
+    private SecondaryIndex instantiate(String field, IndexType type, Map<String, Object> options) {
+        return type == IndexType.BITMAP ? new BitmapIndex(field, ordinals) : type.create(field, options);
+    }
+
+    public boolean createComposite(List<String> fields, List<String> include) {
+        if (fields == null || fields.isEmpty() || fields.stream().anyMatch(name -> name == null || name.isBlank() || name.contains(","))) {
+            throw new IllegalArgumentException("Composite index fields cannot be empty or contain ','");
+        }
+        return create(new CompositeIndex(fields, include));
+    }
+
+    // a composite index answering equality on every where field, one that also covers the projection comes first
+    public CompositeIndex findComposite(Map<String, Object> where, List<String> projection) {
+        CompositeIndex best = null;
+        for (SecondaryIndex index : indexes.values()) {
+            if (!(index instanceof CompositeIndex composite) || isBuilding(index.getField()) || !composite.canMatch(where)) continue;
+            if (best == null || (composite.covers(projection) && !best.covers(projection))) best = composite;
+        }
+        return best;
+    }
+
+    // returns once the build is queued, the index serves queries when it is ready
+    private synchronized boolean create(SecondaryIndex index) {
+        String field = index.getField();
+        SecondaryIndex existing = indexes.get(field);
+        if (existing != null) {
+            if (existing.getType() == index.getType()) return false;
+            throw new IllegalArgumentException("Field " + field + " is already indexed as " + existing.getType().name().toLowerCase());
+        }
+        if (index instanceof BitmapIndex) tracking = true;
+        if (store == null) store = openStore(true);
+        Set<String> fields = sourceFields(indexes.values());
+        fields.addAll(index.getSourceFields());
+        store.setFields(fields); // writes capture the new fields before the build starts
+        build(List.of(index)); // registers the build first so the index is never served half built
+        save();
+        return true;
+    }
+
+    /**
+     * Evaluates a filter on the bitmap indexes as AND/OR/NOT of bitmaps. The selection is exact when every predicate had a
+     * bitmap index, otherwise it is a superset that the caller re-checks. Null when the indexes cannot narrow the filter.
+     */
+    public Selection select(Filter filter) {
+        if (!tracking) return null;
+        return switch (filter) {
+            case Filter.Eq eq -> get(eq.field()) instanceof BitmapIndex index && !eq.field().contains(".") ? new Selection(index.bitmap(eq.value()), true) : null;
+            case Filter.In in -> {
+                if (!(get(in.field()) instanceof BitmapIndex index) || in.field().contains(".")) yield null;
+                RoaringBitmap result = new RoaringBitmap();
+                for (Object value : in.values()) {
+                    result = RoaringBitmap.or(result, index.bitmap(value));
+                }
+                yield new Selection(result, true);
+            }
+            case Filter.Compare compare -> null;
+            case Filter.Exists exists -> null;
+            case Filter.And and -> {
+                RoaringBitmap result = null;
+                boolean exact = true;
+                for (Filter child : and.filters()) {
+                    Selection selection = select(child);
+                    if (selection == null) {
+                        exact = false;
+                        continue;
+                    }
+                    result = result == null ? selection.ordinals() : RoaringBitmap.and(result, selection.ordinals());
+                    exact &= selection.exact();
+                }
+                if (and.filters().isEmpty()) yield hasLiveOrdinals() ? new Selection(ordinals.getLive(), true) : null;
+                yield result != null ? new Selection(result, exact) : null;
+            }
+            case Filter.Or or -> {
+                RoaringBitmap result = new RoaringBitmap();
+                boolean exact = true;
+                for (Filter child : or.filters()) {
+                    Selection selection = select(child);
+                    if (selection == null) yield null; // one unbounded branch makes the union unbounded
+                    result = RoaringBitmap.or(result, selection.ordinals());
+                    exact &= selection.exact();
+                }
+                yield new Selection(result, exact);
+            }
+            case Filter.Not not -> {
+                Selection selection = select(not.filter());
+                // the complement of a superset is no superset of the complement
+                yield selection != null && selection.exact() ? new Selection(RoaringBitmap.andNot(ordinals.getLive(), selection.ordinals()), true) : null;
+            }
+        };
+    }
+
+    public record Selection(RoaringBitmap ordinals, boolean exact) {}
+
+    // builds add the ordinals of existing documents as they go, so the live set is whole once a bitmap index is ready
+    private boolean hasLiveOrdinals() {
+        return indexes.values().stream().anyMatch(index -> index instanceof BitmapIndex && get(index.getField()) == index);
+    }
+
+    public synchronized boolean drop(String field) {
+        SecondaryIndex index = indexes.remove(field);
+        if (index == null) return false;
+        IndexBuild build = builds.remove(field);
+        if (build != null) build.cancel(false);
+        if (store != null && indexes.isEmpty()) {
+            store.delete();
+            store = null;
+        } else if (store != null) {
+            store.setFields(sourceFields(indexes.values()));
+        }
+        save();
+        index.clear();
+        if (index instanceof BitmapIndex && indexes.values().stream().noneMatch(other -> other instanceof BitmapIndex)) {
+            tracking = false;
+            ordinals.clear();
+        }
+        return true;
+    }
+
+    // only indexes that finished building, queries fall back to scans before that
+    public SecondaryIndex get(String field) {
+        return isBuilding(field) ? null : indexes.get(field);
+    }
+
+    public boolean isBuilding(String field) {
+        IndexBuild build = builds.get(field);
+        return build != null && build.getState() != IndexBuild.State.READY;
+    }
+
+    public List<IndexBuild> getBuilds() {
+        return builds.values().stream().distinct().toList();
+    }
+
+    // an admin cancel, the index is dropped once its build stopped
+    public boolean cancelBuild(String field) {
+        IndexBuild build = builds.get(field);
+        if (build == null || !build.isActive()) return false;
+        build.cancel(true);
+        return true;
+    }
+
+    // the collection is closing, the definitions stay and the next open restores or builds again
+    public void close() {
+        builds.values().forEach(build -> {
+            if (build.isActive()) build.cancel(false);
+        });
+        IndexStore current = store;
+        if (current != null) current.close();
+    }
+
+    // called once the documents of a write batch are on disk, before their write-ahead log records are released
+    public void sync() {
+        IndexStore current = store;
+        if (current != null) current.sync();
+    }
+
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(indexes.keySet());
+    }
+
+    // the live ordinals change last, a build that already passed the id cannot leave a deleted one behind
+    public void onWrite(ObjectId id, JsonBase document) {
+        for (SecondaryIndex index : indexes.values()) {
+            touch(index, id);
+            index.put(id, document);
+        }
+        IndexStore current = store;
+        if (current != null) current.put(id, document);
+        if (tracking) ordinals.add(id);
+    }
+
+    public void onDelete(ObjectId id) {
+        for (SecondaryIndex index : indexes.values()) {
+            touch(index, id);
+            index.remove(id);
+        }
+        IndexStore current = store;
+        if (current != null) current.remove(id);
+        if (tracking) ordinals.remove(id);
+    }
+
+    private void touch(SecondaryIndex index, ObjectId id) {
+        if (builds.isEmpty()) return;
+        IndexBuild build = builds.get(index.getField());
+        if (build != null && build.isActive()) build.touch(id);
+    }
+
+    // writes maintain the targets from here on, the builder fills in every document they did not touch
+    private void build(List<SecondaryIndex> targets) {
+        IndexBuild build = new IndexBuild(getName(), targets);
+        for (SecondaryIndex index : targets) builds.put(index.getField(), build);
+        for (SecondaryIndex index : targets) indexes.put(index.getField(), index);
+        boolean bitmaps = targets.stream().anyMatch(index -> index instanceof BitmapIndex);
+        Main.core.getIndexBuilder().submit(build, (CollectionDataImpl) collection.getCollectionData(), (id, value) -> {
+            JsonBase document = new JsonBase(CompressUtil.decompress(value));
+            build.apply(id, () -> {
+                for (SecondaryIndex index : targets) index.putIfAbsent(id, document);
+                IndexStore current = store;
+                if (current != null) current.put(id, document);
+                if (bitmaps) ordinals.add(id);
+            });
+        }, this::finished);
+    }
+
+    private synchronized void finished(IndexBuild build) {
+        switch (build.getState()) {
+            case READY -> {
+                if (store != null) store.cover(sourceFields(build.getTargets())); // the next open restores them
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Index " + getName() + "." + build.getFields() + " built, "
+                        + build.getProcessed().get() + " documents in " + build.toMap().get("elapsedMs") + " ms");
+            }
+            case CANCELLED -> {
+                if (!build.isDropOnCancel()) return;
+                for (String field : build.getFields()) {
+                    if (builds.get(field) != build) continue;
+                    drop(field);
+                    builds.put(field, build); // still reported
+                }
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Index build " + getName() + "." + build.getFields() + " cancelled");
+            }
+            case FAILED -> { // not served, the definition stays so the next open tries again
+                for (SecondaryIndex index : build.getTargets()) {
+                    if (indexes.remove(index.getField(), index)) index.clear();
+                }
+            }
+            default -> {
+            }
+        }
+    }
+    private void save() {
+        List<Map<String, Object>> definitions = new ArrayList<>();
+        for (SecondaryIndex index : indexes.values()) {
+            Map<String, Object> definition = new HashMap<>(index.getOptions());
+            definition.put("field", index.getField());
+            definition.put("type", index.getType().name().toLowerCase());
+            definitions.add(definition);
+        }
+        JsonBase node = new JsonBase(new HashMap<>());
+        node.put("indexes", definitions);
+        IndexMetaUtil.writeMeta(file, node);
+    }
+
+    private String getName() {
+        return collection.getDatabase().getName() + "/" + collection.getCollectionName();
+    }
+}
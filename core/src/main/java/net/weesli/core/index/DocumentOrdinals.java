@@ -0,0 +1,60 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// dense ints for the documents of one collection, the bitmap indexes store these instead of ids
+public class DocumentOrdinals {
+
+    private final Map<ObjectId, Integer> ordinals = new HashMap<>();
+    private ObjectId[] ids = new ObjectId[1024];
+    private final RoaringBitmap live = new RoaringBitmap(); // every existing document, the universe of a NOT
+
+    // a deleted id keeps its ordinal, writing it again reuses it
+    public synchronized int assign(ObjectId id) {
+        Integer ordinal = ordinals.get(id);
+        if (ordinal != null) return ordinal;
+        int next = ordinals.size();
+        if (next == ids.length) ids = Arrays.copyOf(ids, next * 2);
+        ids[next] = id;
+        ordinals.put(id, next);
+        return next;
+    }
+
+    public synchronized void add(ObjectId id) {
+        live.add(assign(id));
+    }
+
+    public synchronized void remove(ObjectId id) {
+        Integer ordinal = ordinals.get(id);
+        if (ordinal != null) live.remove(ordinal);
+    }
+
+    public synchronized RoaringBitmap getLive() {
+        return live.copy();
+    }
+
+    public synchronized long count() {
+        return live.getCardinality();
+    }
+
+    // limit <= 0 returns all
+    public synchronized List<ObjectId> toIds(RoaringBitmap bitmap, int limit) {
+        List<ObjectId> result = new ArrayList<>((int) Math.min(limit > 0 ? limit : Integer.MAX_VALUE, bitmap.getCardinality()));
+        bitmap.forEach(ordinal -> {
+            if (limit <= 0 || result.size() < limit) result.add(ids[ordinal]);
+        });
+        return result;
+    }
+
+    public synchronized void clear() {
+        ordinals.clear();
+        ids = new ObjectId[1024];
+        live.clear();
+    }
+}
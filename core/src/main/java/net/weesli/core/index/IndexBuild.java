@@ -0,0 +1,103 @@
+package net.weesli.core.index;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Getter
+public class IndexBuild {
+
+    public enum State {
+        QUEUED, RUNNING, READY, CANCELLED, FAILED
+    }
+
+    private final String collection;
+    private final List<SecondaryIndex> targets;
+    private final AtomicLong processed = new AtomicLong();
+    private final long createdAt = System.currentTimeMillis();
+    private volatile long total;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+    private volatile boolean dropOnCancel; // an admin cancel drops the index, closing the collection keeps it for the next open
+    private final Set<ObjectId> touched = ConcurrentHashMap.newKeySet(); // written since the build started, already current in the index
+
+    public IndexBuild(String collection, List<SecondaryIndex> targets) {
+        this.collection = collection;
+        this.targets = targets;
+    }
+
+    public List<String> getFields() {
+        return targets.stream().map(SecondaryIndex::getField).toList();
+    }
+
+    // a write marks its id before it updates the index, so the build never puts an older copy over it
+    synchronized void touch(ObjectId id) {
+        touched.add(id);
+    }
+
+    synchronized boolean apply(ObjectId id, Runnable update) {
+        if (touched.contains(id)) return false;
+        update.run();
+        return true;
+    }
+
+    synchronized void start(long total) {
+        if (state != State.QUEUED) return;
+        this.total = total;
+        this.startedAt = System.currentTimeMillis();
+        this.state = State.RUNNING;
+    }
+
+    synchronized boolean finish(State state, String error) {
+        if (this.state == State.READY || this.state == State.CANCELLED || this.state == State.FAILED) return false;
+        this.state = state;
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+        touched.clear();
+        return true;
+    }
+
+    void cancel(boolean drop) {
+        dropOnCancel = drop;
+        finish(State.CANCELLED, null);
+    }
+
+    public boolean isActive() {
+        return state == State.QUEUED || state == State.RUNNING;
+    }
+
+    public double getProgress() {
+        if (state == State.READY) return 1;
+        return total == 0 ? 0 : Math.min(1, (double) processed.get() / total);
+    }
+
+    // from the rate so far, -1 until there is one
+    public long getEtaMillis() {
+        long done = processed.get();
+        if (state != State.RUNNING || done == 0) return state == State.READY ? 0 : -1;
+        long elapsed = System.currentTimeMillis() - startedAt;
+        return Math.max(0, (total - done) * elapsed / done);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("collection", collection);
+        map.put("fields", getFields());
+        map.put("state", state.name());
+        map.put("total", total);
+        map.put("processed", processed.get());
+        map.put("progress", getProgress());
+        map.put("etaMs", getEtaMillis());
+        map.put("elapsedMs", startedAt == 0 ? 0 : (isActive() ? System.currentTimeMillis() : finishedAt) - startedAt);
+        if (error != null) map.put("error", error);
+        return map;
+    }
+}
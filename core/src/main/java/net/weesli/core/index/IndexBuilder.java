@@ -0,0 +1,69 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.cache.CollectionDataImpl;
+import net.weesli.core.model.Settings;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// runs index builds one at a time on a low priority thread, limited in documents and bytes per second so writes keep their share
+public class IndexBuilder {
+
+    private final ExecutorService executor;
+    private final long docsPerSecond; // 0 is unlimited
+    private final long bytesPerSecond; // 0 is unlimited
+
+    public IndexBuilder(long docsPerSecond, long bytesPerSecond) {
+        this.docsPerSecond = Math.max(0, docsPerSecond);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "RozsDB-IndexBuilder");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    public static IndexBuilder fromSettings(Settings settings) {
+        long docsPerSecond = settings != null ? settings.getLong("index", "buildDocsPerSecond", 0) : 0;
+        long mbPerSecond = settings != null ? settings.getLong("index", "buildMBPerSecond", 64) : 64;
+        return new IndexBuilder(docsPerSecond, mbPerSecond * 1024L * 1024L);
+    }
+
+    // visitor runs for every document of the id snapshot taken when the build starts, onFinish once it stopped for any reason
+    public void submit(IndexBuild build, CollectionDataImpl data, BiConsumer<ObjectId, byte[]> visitor, Consumer<IndexBuild> onFinish) {
+        executor.execute(() -> {
+            try {
+                if (build.isActive()) run(build, data, visitor);
+            } catch (Exception e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Index build " + build.getCollection() + "." + build.getFields() + " failed: " + e.getMessage());
+                build.finish(IndexBuild.State.FAILED, String.valueOf(e.getMessage()));
+            }
+            onFinish.accept(build);
+        });
+    }
+
+    private void run(IndexBuild build, CollectionDataImpl data, BiConsumer<ObjectId, byte[]> visitor) throws InterruptedException {
+        List<ObjectId> ids = data.snapshotKeys();
+        build.start(ids.size());
+        long bytes = 0;
+        for (ObjectId id : ids) {
+            if (!build.isActive()) return;
+            byte[] value = data.peek(id); // deleted since the snapshot when null
+            if (value != null) {
+                visitor.accept(id, value);
+                bytes += value.length;
+            }
+            long processed = build.getProcessed().incrementAndGet();
+            long due = Math.max(docsPerSecond > 0 ? processed * 1000 / docsPerSecond : 0, bytesPerSecond > 0 ? bytes * 1000 / bytesPerSecond : 0);
+            long ahead = due - (System.currentTimeMillis() - build.getStartedAt());
+            if (ahead > 10) Thread.sleep(ahead);
+        }
+        build.finish(IndexBuild.State.READY, null);
+    }
+}
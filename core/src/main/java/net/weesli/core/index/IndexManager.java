@@ -1,10 +1,8 @@
 package net.weesli.core.index;
 
 import net.weesli.api.database.Database;
-import net.weesli.core.Main;
 import net.weesli.core.database.DatabasePool;
 
-import java.io.File;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -35,9 +33,7 @@ public class IndexManager {
         return indexMetaManagers.get(database);
     }
 
-    public void saveAll(){
-        indexMetaManagers.forEach((key, value) -> {
-            value.saveRecords(new File(Main.core.getDatabasePath().toFile(), key));
-        });
+    public void saveAll(){ // metadata is journaled as it changes, this only compacts the journals and closes them
+        indexMetaManagers.values().forEach(IndexMetaManager::close);
     }
 }
@@ -1,118 +1,224 @@
 package net.weesli.core.index;
 
-import com.dslplatform.json.DslJson;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import net.weesli.api.model.ObjectId;
-import net.weesli.core.JsonUtil;
+import net.weesli.core.Main;
 import net.weesli.core.model.DataMeta;
-import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.model.FieldDictionary;
+import net.weesli.core.model.FieldShape;
 import net.weesli.core.util.IndexMetaUtil;
 import net.weesli.services.json.JsonBase;
+import net.weesli.services.log.DatabaseLogger;
 import org.apache.commons.text.StringEscapeUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
-import static net.weesli.core.JsonUtil.dslJson;
-
-
+/**
+ * Document metadata of every collection in one database, keyed by id, plus the ids of every field shape, so id
+ * lookups and field filtering do not depend on the collection size. Field names and shapes are interned per collection
+ * in a FieldDictionary, a record only points at its shape.
+ * Every change is appended to the collection's MetaJournal, nothing has to be written at shutdown.
+ */
 @Getter
 public class IndexMetaManager {
-    private final ConcurrentHashMap<String, Set<DataMeta>> records = new ConcurrentHashMap<>();
+    private static final String LEGACY_FILE = "meta.rozs";
+
+    private final File directory;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, DataMeta>> records = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FieldDictionary> dictionaries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ConcurrentHashMap<FieldShape, Set<String>>> shapes = new ConcurrentHashMap<>(); // empty sets are kept, shapes are few
+    private final ConcurrentHashMap<String, MetaJournal> journals = new ConcurrentHashMap<>();
 
     public IndexMetaManager(File file) {
+        this.directory = file;
         load(file);
     }
 
-    @SneakyThrows
     public void load(File file) {
         File[] files = file.listFiles();
         if (files != null) {
             for (File path : files) {
                 if (path.isDirectory()) {
-                    String name = path.getName();
-                    records.put(name, ConcurrentHashMap.newKeySet());
-                    File metaFile = new File(path, "meta.rozs");
-                    boolean status = IndexMetaUtil.insertDefaultMeta(metaFile);
-                    if (!status) continue;
-                    JsonBase node = IndexMetaUtil.getMeta(metaFile);
-                    if (node == null) continue;
-                    List<String> records = node.getAsList("records", String.class);
-                    if (records != null) {
-                        for (String record : records) {
-                            String escaped = record;
-                            if (escaped.startsWith("\"") && escaped.endsWith("\"")) {
-                                escaped = org.apache.commons.text.StringEscapeUtils.unescapeJson(
-                                        escaped.substring(1, escaped.length() - 1)
-                                );
-                            }
-                            byte[] bytes = escaped.getBytes(StandardCharsets.UTF_8);
-                            DataMeta dataMeta = dslJson.deserialize(DataMeta.class, bytes, bytes.length);
-                            addRecord(name, dataMeta);
-                        }
+                    long start = System.currentTimeMillis();
+                    getJournal(path.getName());
+                    int count = records.get(path.getName()).size();
+                    if (count > 0) {
+                        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Loaded " + count + " metadata records of " + file.getName() + "/" + path.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
                     }
                 }
             }
         }
     }
 
+    private MetaJournal getJournal(String collectionName) {
+        return journals.computeIfAbsent(collectionName, name -> {
+            ConcurrentHashMap<String, DataMeta> dataMetas = records.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+            File collectionDirectory = new File(directory, name);
+            FieldDictionary dictionary = getDictionary(name);
+            MetaJournal journal = new MetaJournal(collectionDirectory, dictionary, dataMetas::get, dataMetas::values, getCheckpointBytes());
+            boolean fresh = !journal.exists();
+            journal.open(meta -> apply(name, meta), id -> unapply(name, id));
+            if (fresh && loadLegacy(name, new File(collectionDirectory, LEGACY_FILE))) {
+                journal.checkpoint(true); // converted once, the json file is not read again
+            }
+            return journal;
+        });
+    }
+
+    private FieldDictionary getDictionary(String collectionName) {
+        return dictionaries.computeIfAbsent(collectionName, k -> new FieldDictionary());
+    }
+
+    // the meta.rozs json list written by older versions, every record is an escaped json string
+    @SneakyThrows
+    private boolean loadLegacy(String collectionName, File metaFile) {
+        JsonBase node = IndexMetaUtil.getMeta(metaFile);
+        if (node == null) return false;
+        List<String> records = node.getAsList("records", String.class);
+        if (records != null) {
+            for (String record : records) {
+                String escaped = record;
+                if (escaped.startsWith("\"") && escaped.endsWith("\"")) {
+                    escaped = StringEscapeUtils.unescapeJson(escaped.substring(1, escaped.length() - 1));
+                }
+                JsonBase meta = new JsonBase(escaped.getBytes(StandardCharsets.UTF_8));
+                List<String> fields = meta.getAsList("fields", String.class);
+                apply(collectionName, new DataMeta(meta.get("id", String.class), MetaJournal.parseTime(meta.get("createdAt", String.class)),
+                        MetaJournal.parseTime(meta.get("updatedAt", String.class)), getShape(collectionName, fields != null ? fields : List.of())));
+            }
+        }
+        Files.deleteIfExists(metaFile.toPath());
+        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Converted " + (records != null ? records.size() : 0) + " metadata records of " + collectionName + " to the journal format");
+        return true;
+    }
+
+    // the interned shape of a document with these fields, for the records of the collection
+    public FieldShape getShape(String collectionName, Collection<String> fields) {
+        return getDictionary(collectionName).shape(fields);
+    }
+
+    // replaces the record with the same id, callers must not change a record after adding it
     public void addRecord(String collectionName, DataMeta dataMeta) {
-        Set<DataMeta> dataMetas = records.computeIfAbsent(collectionName, k -> ConcurrentHashMap.newKeySet());
-        dataMetas.add(dataMeta);
+        MetaJournal journal = getJournal(collectionName);
+        apply(collectionName, dataMeta);
+        journal.record(dataMeta.getId());
     }
 
     public void removeRecord(String collectionName, String id) {
-        Set<DataMeta> dataMetas = records.get(collectionName);
-        if (dataMetas != null) {
-            dataMetas.removeIf(dataMeta -> ObjectIdImpl.valueOf(dataMeta.getId()).equals(ObjectIdImpl.valueOf(id)));
-        }
+        if (!records.containsKey(collectionName)) return;
+        MetaJournal journal = getJournal(collectionName);
+        if (unapply(collectionName, id)) journal.record(id);
     }
 
-    public Set<DataMeta> getRecords(String collectionName) {
-        Set<DataMeta> dataMetas = records.get(collectionName);
-        if (dataMetas != null) {
-            return dataMetas;
-        }
-        return ConcurrentHashMap.newKeySet();
+    private void apply(String collectionName, DataMeta dataMeta) {
+        ConcurrentHashMap<String, DataMeta> dataMetas = records.computeIfAbsent(collectionName, k -> new ConcurrentHashMap<>());
+        ConcurrentHashMap<FieldShape, Set<String>> shapeIds = shapes.computeIfAbsent(collectionName, k -> new ConcurrentHashMap<>());
+        dataMetas.compute(dataMeta.getId(), (id, old) -> {
+            if (old == null) {
+                shapeIds.computeIfAbsent(dataMeta.getShape(), k -> ConcurrentHashMap.newKeySet()).add(id);
+                return dataMeta;
+            }
+            if (old.getShape() != dataMeta.getShape()) {
+                shapeIds.getOrDefault(old.getShape(), Set.of()).remove(id);
+                shapeIds.computeIfAbsent(dataMeta.getShape(), k -> ConcurrentHashMap.newKeySet()).add(old.getId());
+            }
+            // the id string of the first record stays, the map key and the shape set already hold it
+            return old.getId() == dataMeta.getId() ? dataMeta : new DataMeta(old.getId(), dataMeta.getCreatedAt(), dataMeta.getUpdatedAt(), dataMeta.getShape());
+        });
+    }
+
+    private boolean unapply(String collectionName, String id) {
+        ConcurrentHashMap<String, DataMeta> dataMetas = records.get(collectionName);
+        if (dataMetas == null) return false;
+        ConcurrentHashMap<FieldShape, Set<String>> shapeIds = shapes.get(collectionName);
+        boolean[] removed = new boolean[1];
+        dataMetas.computeIfPresent(id, (key, old) -> {
+            if (shapeIds != null) shapeIds.getOrDefault(old.getShape(), Set.of()).remove(key);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public Collection<DataMeta> getRecords(String collectionName) {
+        ConcurrentHashMap<String, DataMeta> dataMetas = records.get(collectionName);
+        return dataMetas != null ? Collections.unmodifiableCollection(dataMetas.values()) : List.of();
     }
 
     public DataMeta getRecord(String collectionName, ObjectId id) {
-        Set<DataMeta> dataMetas = records.get(collectionName);
-        if (dataMetas != null) {
-            for (DataMeta dataMeta : dataMetas) {
-                if (ObjectIdImpl.valueOf(dataMeta.getId()).equals(id)) {
-                    return dataMeta;
-                }
+        return getRecord(collectionName, id.getObjectId());
+    }
+
+    public DataMeta getRecord(String collectionName, String id) {
+        ConcurrentHashMap<String, DataMeta> dataMetas = records.get(collectionName);
+        return dataMetas != null ? dataMetas.get(id) : null;
+    }
+
+    // ids of the documents that have the field, a live view over the shapes that have it
+    public Set<String> getIdsWithField(String collectionName, String field) {
+        FieldDictionary dictionary = dictionaries.get(collectionName);
+        ConcurrentHashMap<FieldShape, Set<String>> shapeIds = shapes.get(collectionName);
+        int ordinal = dictionary != null ? dictionary.ordinal(field) : -1;
+        if (ordinal < 0 || shapeIds == null) return Set.of();
+        List<Set<String>> matching = new ArrayList<>();
+        shapeIds.forEach((shape, ids) -> {
+            if (shape.contains(ordinal)) matching.add(ids);
+        });
+        return matching.size() == 1 ? Collections.unmodifiableSet(matching.get(0)) : new ShapeIds(matching);
+    }
+
+    // forces the appended records of the collection to disk, the write pool calls it before the wal lets go of a batch
+    public void sync(String collectionName) {
+        MetaJournal journal = journals.get(collectionName);
+        if (journal != null) journal.sync();
+    }
+
+    public void checkpoint() {
+        journals.values().forEach(MetaJournal::checkpoint);
+    }
+
+    public void close() {
+        journals.values().forEach(MetaJournal::close);
+    }
+
+    private static long getCheckpointBytes() {
+        long checkpointMB = Main.core != null && Main.core.getSettings() != null ? Main.core.getSettings().getLong("meta", "checkpointMB", 8) : 8;
+        return Math.max(1, checkpointMB) * 1024L * 1024L;
+    }
+
+    // a record is in the set of exactly one shape, so the union needs no deduplication
+    private static final class ShapeIds extends AbstractSet<String> {
+        private final List<Set<String>> sets;
+
+        private ShapeIds(List<Set<String>> sets) {
+            this.sets = sets;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return sets.stream().flatMap(Set::stream).iterator();
+        }
+
+        @Override
+        public boolean contains(Object id) {
+            for (Set<String> ids : sets) {
+                if (ids.contains(id)) return true;
             }
+            return false;
         }
-        return null;
-    }
 
-    @SneakyThrows
-    public void saveRecords(File file) {
-        for (String collectionName : records.keySet()) {
-            Set<DataMeta> dataMetas = records.get(collectionName);
-            File meta = new File(new File(file, collectionName), "meta.rozs");
-            JsonBase node = new JsonBase(new HashMap<>());
-            List<String> values = new ArrayList<>();
-            if (dataMetas != null) {
-                for (DataMeta dataMeta : dataMetas) {
-                    DslJson<Object> dslJson = JsonUtil.dslJson;
-                    ByteArrayOutputStream output = new ByteArrayOutputStream();
-                    dslJson.serialize(dataMeta, output);
-                    values.add(output.toString(StandardCharsets.UTF_8));
-                }
+        @Override
+        public int size() {
+            int size = 0;
+            for (Set<String> ids : sets) {
+                size += ids.size();
             }
-            node.put("records", values);
-            // write node to file
-            IndexMetaUtil.writeMeta(meta, node);
+            return size;
         }
     }
-
 }
@@ -0,0 +1,145 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.services.json.JsonBase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * The indexed fields of every document of a collection, journaled next to the documents and checkpointed to
+ * indexes.ridx, so a restart restores the indexes without reading a single document. Fields only count as covered once
+ * a build captured them for every document, an index reading any other field is built from the documents again.
+ * A record is id length(4) and the fields as json, the covered fields are journaled under the empty id.
+ */
+public class IndexStore extends RecordJournal<IndexStore.Entry> {
+
+    public static final String CHECKPOINT_FILE = "indexes.ridx";
+    private static final int MAGIC = 0x52494458; // "RIDX"
+    private static final int VERSION = 1;
+    private static final String COVERED = ""; // no document id is empty
+
+    public record Entry(String id, byte[] fields) {
+    }
+
+    private final ConcurrentHashMap<String, byte[]> entries;
+    private final ReentrantReadWriteLock fieldsLock = new ReentrantReadWriteLock(); // a put never stores fields older than the last setFields
+    private volatile List<String> fields = List.of(); // captured on every write
+    private volatile Set<String> covered = Set.of(); // captured for every document
+
+    public IndexStore(File directory, long checkpointBytes) {
+        this(directory, checkpointBytes, new ConcurrentHashMap<>());
+    }
+
+    private IndexStore(File directory, long checkpointBytes, ConcurrentHashMap<String, byte[]> entries) {
+        super(directory, CHECKPOINT_FILE, "indexes-", ".rjnl", MAGIC, VERSION, "index store",
+                id -> {
+                    byte[] fields = entries.get(id);
+                    return fields != null ? new Entry(id, fields) : null;
+                },
+                () -> entries.entrySet().stream().map(entry -> new Entry(entry.getKey(), entry.getValue())).toList(),
+                checkpointBytes);
+        this.entries = entries;
+    }
+
+    public void open() {
+        open(entry -> entries.put(entry.id(), entry.fields()), entries::remove);
+        byte[] covered = entries.get(COVERED);
+        if (covered != null) {
+            List<String> names = new JsonBase(covered).getAsList("covered", String.class);
+            this.covered = names != null ? Set.copyOf(names) : Set.of();
+        }
+    }
+
+    public Set<String> getCovered() {
+        return covered;
+    }
+
+    // what writes capture from now on, fields that are no longer captured stop being covered
+    public void setFields(Collection<String> names) {
+        fieldsLock.writeLock().lock();
+        try {
+            fields = new ArrayList<>(new TreeSet<>(names));
+            Set<String> kept = new HashSet<>(covered);
+            if (kept.retainAll(names)) saveCovered(kept);
+        } finally {
+            fieldsLock.writeLock().unlock();
+        }
+    }
+
+    // every document was captured with these fields, a build finished
+    public void cover(Collection<String> names) {
+        fieldsLock.writeLock().lock();
+        try {
+            Set<String> added = new HashSet<>(covered);
+            for (String name : names) {
+                if (fields.contains(name)) added.add(name);
+            }
+            if (!added.equals(covered)) saveCovered(added);
+        } finally {
+            fieldsLock.writeLock().unlock();
+        }
+    }
+
+    public void put(ObjectId id, JsonBase document) {
+        fieldsLock.readLock().lock();
+        try {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String field : fields) {
+                Object value = document.getData().get(field);
+                if (value != null) values.put(field, value);
+            }
+            byte[] projected = new JsonBase(values).asJsonText().getBytes(StandardCharsets.UTF_8);
+            byte[] old = entries.put(id.getObjectId(), projected);
+            if (old == null || !Arrays.equals(old, projected)) record(id.getObjectId()); // writes to other fields append nothing
+        } finally {
+            fieldsLock.readLock().unlock();
+        }
+    }
+
+    public void remove(ObjectId id) {
+        if (entries.remove(id.getObjectId()) != null) record(id.getObjectId());
+    }
+
+    // every captured document with its captured fields
+    public void forEach(BiConsumer<ObjectId, JsonBase> consumer) {
+        entries.forEach((id, fields) -> {
+            if (!id.equals(COVERED)) consumer.accept(ObjectIdImpl.valueOf(id), new JsonBase(fields));
+        });
+    }
+
+    public int size() {
+        return entries.containsKey(COVERED) ? entries.size() - 1 : entries.size();
+    }
+
+    private void saveCovered(Set<String> names) {
+        covered = Set.copyOf(names);
+        JsonBase node = new JsonBase(new HashMap<>());
+        node.put("covered", new ArrayList<>(new TreeSet<>(names)));
+        entries.put(COVERED, node.asJsonText().getBytes(StandardCharsets.UTF_8));
+        record(COVERED);
+    }
+
+    @Override
+    protected void encode(Entry entry, DataOutputStream out) throws IOException {
+        out.writeUTF(entry.id());
+        out.writeInt(entry.fields().length);
+        out.write(entry.fields());
+    }
+
+    @Override
+    protected Entry decode(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        int length = in.readInt();
+        if (length < 0) throw new IOException("Invalid index store record length " + length);
+        return new Entry(id, in.readNBytes(length));
+    }
+}
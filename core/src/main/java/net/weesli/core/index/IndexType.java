@@ -0,0 +1,42 @@
+package net.weesli.core.index;
+
+import net.weesli.core.index.types.BitmapIndex;
+import net.weesli.core.index.types.CompositeIndex;
+import net.weesli.core.index.types.HashIndex;
+import net.weesli.core.index.types.OrderedIndex;
+import net.weesli.core.index.types.TextIndex;
+
+import java.util.List;
+import java.util.Map;
+
+public enum IndexType {
+    HASH, // value -> ids, equality lookups only
+    ORDERED, // sorted (value, id) entries, equality, ranges, prefixes and ordered scans
+    TEXT, // tokenized terms -> ids, ranked word and prefix search
+    COMPOSITE, // several fields in order plus included fields, answers covered queries from the index
+    BITMAP; // value -> compressed bitmap of document ordinals, boolean filters and counts for low-cardinality fields
+
+    public SecondaryIndex create(String field) {
+        return create(field, Map.of());
+    }
+
+    @SuppressWarnings("unchecked")
+    public SecondaryIndex create(String field, Map<String, Object> options) {
+        return switch (this) {
+            case HASH -> new HashIndex(field);
+            case ORDERED -> new OrderedIndex(field);
+            case TEXT -> new TextIndex(field);
+            case COMPOSITE -> new CompositeIndex(options.containsKey("fields") ? (List<String>) options.get("fields") : List.of(field.split(",")),
+                    (List<String>) options.get("include"));
+            case BITMAP -> new BitmapIndex(field, new DocumentOrdinals()); // a collection shares its own ordinals instead
+        };
+    }
+
+    public static IndexType fromName(String name) {
+        try {
+            return IndexType.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown index type '" + name + "'");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.weesli.core.index;
+
+import net.weesli.core.model.DataMeta;
+import net.weesli.core.model.FieldDictionary;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Journal of the document metadata of one collection, checkpointed to metadata.rmeta.
+ * A record is id createdAt(8) updatedAt(8) fieldCount(2) fields, strings are length(2) utf8 and times epoch millis.
+ */
+public class MetaJournal extends RecordJournal<DataMeta> {
+
+    public static final String CHECKPOINT_FILE = "metadata.rmeta";
+    private static final int MAGIC = 0x524D4554; // "RMET"
+    private static final int VERSION = 2;
+
+    private final FieldDictionary dictionary;
+
+    public MetaJournal(File directory, FieldDictionary dictionary, Function<String, DataMeta> lookup, Supplier<Collection<DataMeta>> snapshot, long checkpointBytes) {
+        super(directory, CHECKPOINT_FILE, "metadata-", ".rjnl", MAGIC, VERSION, "metadata", lookup, snapshot, checkpointBytes);
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    protected void encode(DataMeta meta, DataOutputStream out) throws IOException {
+        List<String> fields = meta.getFields();
+        if (fields.size() > 0xFFFF) throw new IllegalArgumentException("Too many fields in document " + meta.getId());
+        out.writeUTF(meta.getId());
+        out.writeLong(meta.getCreatedAt());
+        out.writeLong(meta.getUpdatedAt());
+        out.writeShort(fields.size());
+        for (String field : fields) {
+            out.writeUTF(field);
+        }
+    }
+
+    @Override
+    protected DataMeta decode(DataInputStream in) throws IOException {
+        String id = in.readUTF();
+        long createdAt = in.readLong();
+        long updatedAt = in.readLong();
+        int count = in.readUnsignedShort();
+        List<String> fields = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fields.add(in.readUTF());
+        }
+        return new DataMeta(id, createdAt, updatedAt, dictionary.shape(fields));
+    }
+
+    // LocalDateTime.toString() of the local zone, as meta.rozs kept the times, 0 when missing
+    static long parseTime(String value) {
+        return value == null || value.isEmpty() ? 0 : LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,12 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Range;
+
+import java.util.Iterator;
+
+// an index that keeps its values sorted, ranges are walked lazily so a limited query stops early
+public interface RangeIndex extends SecondaryIndex {
+
+    Iterator<ObjectId> range(Range range, boolean descending);
+}
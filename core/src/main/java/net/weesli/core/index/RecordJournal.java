@@ -0,0 +1,365 @@
+package net.weesli.core.index;
+
+import net.weesli.core.Main;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only journal of records keyed by id. Every change appends the current record of the id, so replaying in order
+ * ends with the latest state. Once the journal outgrows the last checkpoint, every live record is written to the
+ * checkpoint file and a new journal file is started, older journal files are deleted afterwards.
+ * Journal record layout: crc(4) type(1) length(4) payload, a put payload is the encoded record and a delete payload is
+ * the id as length(2) utf8.
+ * Checkpoint layout: magic(4) version(4) generation(8) count(4) put payloads, then a crc32c of everything before
+ * it. The checkpoint is memory-mapped and verified as a whole before any record is handed out.
+ */
+public abstract class RecordJournal<T> {
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 4;
+
+    private final File directory;
+    private final String checkpointFile;
+    private final String filePrefix;
+    private final String fileExtension;
+    private final int magic;
+    private final int version;
+    private final String label; // for log messages
+    private final Function<String, T> lookup;
+    private final Supplier<Collection<T>> snapshot;
+    private final long checkpointBytes;
+
+    private final Object appendLock = new Object();
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private FileChannel channel;
+    private long generation;
+    private long size;
+    private boolean dirty; // appended since the last force
+    private volatile long lastCheckpointSize;
+
+    // lookup gives the current record of an id, snapshot every live record, both are read while appends wait
+    protected RecordJournal(File directory, String checkpointFile, String filePrefix, String fileExtension, int magic, int version, String label,
+                            Function<String, T> lookup, Supplier<Collection<T>> snapshot, long checkpointBytes) {
+        this.directory = directory;
+        this.checkpointFile = checkpointFile;
+        this.filePrefix = filePrefix;
+        this.fileExtension = fileExtension;
+        this.magic = magic;
+        this.version = version;
+        this.label = label;
+        this.lookup = lookup;
+        this.snapshot = snapshot;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    protected abstract void encode(T record, DataOutputStream out) throws IOException;
+
+    protected abstract T decode(DataInputStream in) throws IOException;
+
+    public boolean exists() {
+        return new File(directory, checkpointFile).exists() || !generations().isEmpty();
+    }
+
+    // streams the checkpoint and the journal files written after it, then opens the newest file for appending
+    public int open(Consumer<T> put, Consumer<String> delete) {
+        int count = 0;
+        try {
+            File checkpoint = new File(directory, checkpointFile);
+            generation = 1;
+            if (checkpoint.exists()) {
+                lastCheckpointSize = checkpoint.length();
+                count += readCheckpoint(checkpoint, put);
+            }
+            List<Long> generations = generations();
+            for (int i = 0; i < generations.size(); i++) {
+                long current = generations.get(i);
+                if (current < generation) { // covered by the checkpoint, its deletion was interrupted
+                    Files.deleteIfExists(journalFile(current).toPath());
+                    continue;
+                }
+                count += replay(journalFile(current), i == generations.size() - 1, put, delete);
+                generation = current;
+            }
+            channel = FileChannel.open(journalFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open " + label + " journal in " + directory.getAbsolutePath(), e);
+        }
+        return count;
+    }
+
+    // appends the current record of the id, or a delete when there is none
+    public void record(String id) {
+        boolean due;
+        synchronized (appendLock) {
+            if (channel == null) return;
+            T current = lookup.apply(id);
+            byte[] payload = current != null ? bytes(current) : string(id);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            byte type = current != null ? TYPE_PUT : TYPE_DELETE;
+            buffer.putInt(checksum(type, payload)).put(type).putInt(payload.length).put(payload).flip();
+            try {
+                long position = size;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                size = position;
+                dirty = true;
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to append to " + label + " journal in " + directory.getAbsolutePath() + ": " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+            due = size > Math.max(checkpointBytes, lastCheckpointSize);
+        }
+        if (due && !checkpointing.get()) {
+            if (Main.core != null) Main.core.getIoScheduler().run(this::checkpoint);
+            else checkpoint();
+        }
+    }
+
+    // makes every appended record durable
+    public void sync() {
+        synchronized (appendLock) {
+            if (channel == null || !dirty) return;
+            try {
+                channel.force(false);
+                dirty = false;
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to sync " + label + " journal in " + directory.getAbsolutePath() + ": " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void checkpoint() {
+        checkpoint(false);
+    }
+
+    void checkpoint(boolean force) {
+        if (!checkpointing.compareAndSet(false, true)) return;
+        try {
+            List<T> records;
+            long covered;
+            synchronized (appendLock) {
+                if (channel == null || (size == 0 && !force)) return; // nothing changed since the last checkpoint
+                records = new ArrayList<>(snapshot.get());
+                channel.force(false);
+                channel.close();
+                dirty = false;
+                covered = generation++;
+                channel = FileChannel.open(journalFile(generation).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                size = channel.size();
+            }
+            writeCheckpoint(records, covered + 1);
+            for (long old : generations()) {
+                if (old <= covered) Files.deleteIfExists(journalFile(old).toPath());
+            }
+        } catch (IOException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to checkpoint " + label + " journal in " + directory.getAbsolutePath() + ": " + e.getMessage());
+        } finally {
+            checkpointing.set(false);
+        }
+    }
+
+    public void close() {
+        checkpoint();
+        synchronized (appendLock) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to close " + label + " journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    // closes without a checkpoint and removes every file, the journal cannot be used afterwards
+    public void delete() {
+        while (!checkpointing.compareAndSet(false, true)) { // a running checkpoint would write its file after the delete
+            Thread.onSpinWait();
+        }
+        synchronized (appendLock) {
+            try {
+                if (channel != null) channel.close();
+                channel = null;
+                Files.deleteIfExists(new File(directory, checkpointFile).toPath());
+                for (long old : generations()) {
+                    Files.deleteIfExists(journalFile(old).toPath());
+                }
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to delete " + label + " journal in " + directory.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeCheckpoint(List<T> records, long nextGeneration) throws IOException {
+        File target = new File(directory, checkpointFile);
+        File temp = new File(directory, checkpointFile + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeLong(nextGeneration);
+            out.writeInt(records.size());
+            for (T record : records) {
+                encode(record, out);
+            }
+            out.flush();
+            file.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastCheckpointSize = target.length();
+    }
+
+    // records are only handed out once the trailer matched
+    private int readCheckpoint(File file, Consumer<T> put) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel checkpoint = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = checkpoint.map(FileChannel.MapMode.READ_ONLY, 0, checkpoint.size()); // stays valid after the channel closes
+        }
+        if (mapped.limit() < 4 + 4 + 8 + 4 + 4) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Truncated " + label + " checkpoint " + file.getAbsolutePath() + ", only the journal is loaded");
+            return 0;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(mapped.slice(0, mapped.limit() - 4));
+        if (mapped.getInt(mapped.limit() - 4) != (int) crc.getValue()) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Corrupted " + label + " checkpoint " + file.getAbsolutePath() + ", only the journal is loaded");
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferInputStream(mapped.slice(0, mapped.limit() - 4)));
+        if (in.readInt() != magic || in.readInt() != version) {
+            throw new IOException("Unknown " + label + " checkpoint format: " + file.getAbsolutePath());
+        }
+        generation = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            put.accept(decode(in));
+        }
+        return count;
+    }
+
+    private int replay(File file, boolean last, Consumer<T> put, Consumer<String> delete) throws IOException {
+        long fileSize = file.length();
+        long position = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (position + HEADER_SIZE <= fileSize) {
+                int crc = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || position + HEADER_SIZE + length > fileSize) break;
+                byte[] payload = in.readNBytes(length);
+                if (crc != checksum(type, payload)) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (type == TYPE_PUT) put.accept(decode(record));
+                else delete.accept(record.readUTF());
+                position += HEADER_SIZE + length;
+                count++;
+            }
+        } catch (EOFException ignored) {
+        }
+        if (position < fileSize) {
+            if (last) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Truncating incomplete tail of " + label + " journal " + file.getAbsolutePath() + " at " + position);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(position);
+                }
+            } else {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Corrupted record in " + label + " journal " + file.getAbsolutePath() + " at " + position + ", rest of file skipped");
+            }
+        }
+        return count;
+    }
+
+    private byte[] bytes(T record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            encode(record, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] string(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() + 2);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private File journalFile(long generation) {
+        return new File(directory, filePrefix + String.format("%08d", generation) + fileExtension);
+    }
+
+    private List<Long> generations() {
+        File[] found = directory.listFiles((dir, name) -> name.startsWith(filePrefix) && name.endsWith(fileExtension));
+        List<Long> generations = new ArrayList<>();
+        if (found != null) {
+            for (File file : found) {
+                String number = file.getName().substring(filePrefix.length(), file.getName().length() - fileExtension.length());
+                try {
+                    generations.add(Long.parseLong(number));
+                } catch (NumberFormatException e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Ignoring unknown " + label + " journal file: " + file.getAbsolutePath());
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    // reads a mapped checkpoint in place
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(target, offset, count);
+            return count;
+        }
+    }
+}
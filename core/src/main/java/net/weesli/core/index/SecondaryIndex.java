@@ -0,0 +1,31 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.services.json.JsonBase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// an in-memory index over one field of a collection, documents without the field are not indexed
+public interface SecondaryIndex {
+
+    String getField();
+    IndexType getType();
+
+    default Map<String, Object> getOptions() { // persisted next to field and type, handed back to IndexType.create
+        return Map.of();
+    }
+
+    default List<String> getSourceFields() { // the document fields put reads, the index store keeps these for a restart
+        return List.of(getField());
+    }
+
+    void put(ObjectId id, JsonBase document); // replaces whatever was indexed for the id
+    void putIfAbsent(ObjectId id, JsonBase document); // used while building, a concurrent write always wins
+    void remove(ObjectId id);
+
+    Set<ObjectId> lookup(Object value); // candidates for find, null when the index can not answer the value
+    int size();
+    void clear();
+}
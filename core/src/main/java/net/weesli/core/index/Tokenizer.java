@@ -0,0 +1,28 @@
+package net.weesli.core.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// splits text into lower-case runs of letters and digits, overly long runs (hashes, base64) are cut
+public final class Tokenizer {
+    public static final int MAX_TERM_LENGTH = 64;
+
+    private Tokenizer() {
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (part && start < 0) {
+                start = i;
+            } else if (!part && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,59 @@
+package net.weesli.core.index;
+
+import net.weesli.api.model.Range;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+// the order of indexed values: numbers by value, then strings, then booleans, other json values are not ordered
+public final class ValueOrder {
+
+    private ValueOrder() {
+    }
+
+    public static boolean isOrdered(Object value) {
+        return rank(value) >= 0;
+    }
+
+    public static int compare(Object a, Object b) {
+        int rank = Integer.compare(rank(a), rank(b));
+        if (rank != 0) return rank;
+        if (a instanceof Number x && b instanceof Number y) return compareNumbers(x, y);
+        if (a instanceof String x) return x.compareTo((String) b);
+        return Boolean.compare((Boolean) a, (Boolean) b);
+    }
+
+    // a range with one typed bound only covers values of that type, so "age > 30" never returns strings
+    public static boolean inRange(Object value, Range range) {
+        if (!isOrdered(value)) return false;
+        if (range.from() != null) {
+            int result = compare(value, range.from());
+            if (result < 0 || (result == 0 && !range.fromInclusive())) return false;
+        }
+        if (range.to() != null) {
+            int result = compare(value, range.to());
+            if (result > 0 || (result == 0 && !range.toInclusive())) return false;
+        }
+        Object bound = range.from() != null ? range.from() : range.to();
+        return bound == null || rank(bound) == rank(value);
+    }
+
+    public static int rank(Object value) {
+        if (value instanceof Number) return 0;
+        if (value instanceof String) return 1;
+        if (value instanceof Boolean) return 2;
+        return -1;
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) return Long.compare(a.longValue(), b.longValue());
+        if (a instanceof BigDecimal || b instanceof BigDecimal || a instanceof BigInteger || b instanceof BigInteger) {
+            return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+}
@@ -0,0 +1,85 @@
+package net.weesli.core.index.types;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.index.DocumentOrdinals;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.RoaringBitmap;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.services.json.JsonBase;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// one compressed bitmap of document ordinals per value, meant for fields with few distinct values
+public class BitmapIndex implements SecondaryIndex {
+
+    @Getter private final String field;
+    private final DocumentOrdinals ordinals; // shared by the bitmap indexes of a collection so their bitmaps combine
+    private final Map<Object, RoaringBitmap> bitmaps = new HashMap<>();
+    private final Map<ObjectId, Object> values = new HashMap<>(); // what each id is indexed under
+
+    public BitmapIndex(String field, DocumentOrdinals ordinals) {
+        this.field = field;
+        this.ordinals = ordinals;
+    }
+
+    @Override
+    public IndexType getType() {
+        return IndexType.BITMAP;
+    }
+
+    @Override
+    public synchronized void put(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        Object old = value != null ? values.put(id, value) : values.remove(id);
+        if (old != null && old.equals(value)) return;
+        int ordinal = ordinals.assign(id);
+        if (old != null) unlink(old, ordinal);
+        if (value != null) bitmaps.computeIfAbsent(value, key -> new RoaringBitmap()).add(ordinal);
+    }
+
+    @Override
+    public synchronized void putIfAbsent(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        if (value == null || values.putIfAbsent(id, value) != null) return;
+        bitmaps.computeIfAbsent(value, key -> new RoaringBitmap()).add(ordinals.assign(id));
+    }
+
+    @Override
+    public synchronized void remove(ObjectId id) {
+        Object old = values.remove(id);
+        if (old != null) unlink(old, ordinals.assign(id));
+    }
+
+    @Override
+    public Set<ObjectId> lookup(Object value) {
+        return new LinkedHashSet<>(ordinals.toIds(bitmap(value), 0));
+    }
+
+    // a copy, callers combine it freely
+    public synchronized RoaringBitmap bitmap(Object value) {
+        RoaringBitmap bitmap = value != null ? bitmaps.get(value) : null;
+        return bitmap != null ? bitmap.copy() : new RoaringBitmap();
+    }
+
+    @Override
+    public synchronized int size() {
+        return values.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        bitmaps.clear();
+        values.clear();
+    }
+
+    private void unlink(Object value, int ordinal) {
+        RoaringBitmap bitmap = bitmaps.get(value);
+        if (bitmap == null) return;
+        bitmap.remove(ordinal);
+        if (bitmap.isEmpty()) bitmaps.remove(value);
+    }
+}
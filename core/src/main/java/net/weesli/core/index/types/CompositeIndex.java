@@ -0,0 +1,182 @@
+package net.weesli.core.index.types;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.core.index.ValueOrder;
+import net.weesli.services.json.JsonBase;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index over several fields in order, every entry also carries the values of the included fields. Queries
+ * with equality on a leading run of the key fields are a contiguous range, and when every requested field is in the
+ * entry they are answered without reading the documents. A missing or unordered key value sorts first and never
+ * matches.
+ */
+public class CompositeIndex implements SecondaryIndex {
+
+    private static final Object MISSING = new Object(); // the document has no such field, a json null is kept as null
+
+    @Getter private final String field; // the key fields joined with ','
+    @Getter private final List<String> fields;
+    @Getter private final List<String> include;
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<ObjectId, Entry> values = new ConcurrentHashMap<>();
+
+    public CompositeIndex(List<String> fields, List<String> include) {
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("Composite index needs at least one field");
+        }
+        this.fields = List.copyOf(fields);
+        this.include = include != null ? List.copyOf(include) : List.of();
+        this.field = String.join(",", this.fields);
+    }
+
+    public static String nameOf(List<String> fields) {
+        return String.join(",", fields);
+    }
+
+    @Override
+    public IndexType getType() {
+        return IndexType.COMPOSITE;
+    }
+
+    @Override
+    public Map<String, Object> getOptions() {
+        return Map.of("fields", fields, "include", include);
+    }
+
+    @Override
+    public List<String> getSourceFields() {
+        List<String> source = new ArrayList<>(fields);
+        source.addAll(include);
+        return source;
+    }
+
+    @Override
+    public void put(ObjectId id, JsonBase document) {
+        Entry entry = entry(id, document);
+        values.compute(id, (key, old) -> {
+            if (old != null) entries.remove(old);
+            entries.add(entry);
+            return entry;
+        });
+    }
+
+    @Override
+    public void putIfAbsent(ObjectId id, JsonBase document) {
+        values.computeIfAbsent(id, key -> {
+            Entry entry = entry(id, document);
+            entries.add(entry);
+            return entry;
+        });
+    }
+
+    @Override
+    public void remove(ObjectId id) {
+        values.computeIfPresent(id, (key, old) -> {
+            entries.remove(old);
+            return null;
+        });
+    }
+
+    @Override
+    public Set<ObjectId> lookup(Object value) {
+        return null; // the index is queried by field values, see match
+    }
+
+    // true when where names exactly the first where.size() key fields and holds values the index orders
+    public boolean canMatch(Map<String, Object> where) {
+        if (where.isEmpty() || where.size() > fields.size()) return false;
+        for (int i = 0; i < where.size(); i++) {
+            if (!where.containsKey(fields.get(i)) || !ValueOrder.isOrdered(where.get(fields.get(i)))) return false;
+        }
+        return true;
+    }
+
+    public boolean covers(Collection<String> projection) {
+        if (projection == null || projection.isEmpty()) return false;
+        for (String name : projection) {
+            if (!name.equals("$id") && !fields.contains(name) && !include.contains(name)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Ids of the entries equal to where on the leading key fields, in index order. When projection is given the
+     * requested fields are copied out of the entries into projected, keyed by id.
+     */
+    public List<ObjectId> match(Map<String, Object> where, List<String> projection, Map<ObjectId, Map<String, Object>> projected) {
+        Object[] prefix = new Object[where.size()];
+        for (int i = 0; i < prefix.length; i++) prefix[i] = where.get(fields.get(i));
+        NavigableSet<Entry> range = entries.subSet(new Entry(prefix, null, null, -1), true, new Entry(prefix, null, null, 1), true);
+        List<ObjectId> ids = new ArrayList<>();
+        for (Entry entry : range) {
+            boolean equal = true; // the order treats 7 and 7.0 alike, find matches with equals
+            for (int i = 0; i < prefix.length && equal; i++) equal = prefix[i].equals(entry.key[i]);
+            if (!equal) continue;
+            ids.add(entry.id);
+            if (projection == null) continue;
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (String name : projection) {
+                if (name.equals("$id")) {
+                    values.put(name, entry.id.getObjectId());
+                    continue;
+                }
+                int index = fields.indexOf(name);
+                Object value = index >= 0 ? entry.key[index] : entry.included[include.indexOf(name)];
+                if (value != MISSING) values.put(name, value);
+            }
+            projected.put(entry.id, values);
+        }
+        return ids;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        values.clear();
+    }
+
+    private Entry entry(ObjectId id, JsonBase document) {
+        Map<String, Object> data = document.getData();
+        Object[] key = new Object[fields.size()];
+        Object[] included = new Object[include.size()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = data.containsKey(fields.get(i)) ? data.get(fields.get(i)) : MISSING;
+        }
+        for (int i = 0; i < included.length; i++) {
+            included[i] = data.containsKey(include.get(i)) ? data.get(include.get(i)) : MISSING;
+        }
+        return new Entry(key, included, id, 0);
+    }
+
+    private static int compareKey(Object a, Object b) {
+        boolean orderedA = ValueOrder.isOrdered(a), orderedB = ValueOrder.isOrdered(b);
+        if (!orderedA || !orderedB) return Boolean.compare(orderedA, orderedB);
+        return ValueOrder.compare(a, b);
+    }
+
+    // bound -1 sorts before every entry starting with key, 1 after every one, 0 is a stored entry
+    private record Entry(Object[] key, Object[] included, ObjectId id, int bound) implements Comparable<Entry> {
+        @Override
+        public int compareTo(Entry other) {
+            int length = Math.min(key.length, other.key.length);
+            for (int i = 0; i < length; i++) {
+                int result = compareKey(key[i], other.key[i]);
+                if (result != 0) return result;
+            }
+            if (bound != 0 || other.bound != 0) return Integer.compare(bound, other.bound);
+            return id.getObjectId().compareTo(other.id.getObjectId());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package net.weesli.core.index.types;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.services.json.JsonBase;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// values are keyed as they were parsed, so a lookup matches exactly what JsonBase.isValueMatch would
+public class HashIndex implements SecondaryIndex {
+
+    @Getter private final String field;
+    private final ConcurrentHashMap<Object, Set<ObjectId>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ObjectId, Object> values = new ConcurrentHashMap<>(); // what each id is indexed under
+
+    public HashIndex(String field) {
+        this.field = field;
+    }
+
+    @Override
+    public IndexType getType() {
+        return IndexType.HASH;
+    }
+
+    @Override
+    public void put(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        values.compute(id, (key, old) -> {
+            if (old != null && !old.equals(value)) unlink(old, id);
+            if (value != null) link(value, id);
+            return value;
+        });
+    }
+
+    @Override
+    public void putIfAbsent(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        if (value == null) return;
+        values.computeIfAbsent(id, key -> {
+            link(value, id);
+            return value;
+        });
+    }
+
+    @Override
+    public void remove(ObjectId id) {
+        values.computeIfPresent(id, (key, old) -> {
+            unlink(old, id);
+            return null;
+        });
+    }
+
+    @Override
+    public Set<ObjectId> lookup(Object value) {
+        if (value == null) return Set.of();
+        Set<ObjectId> ids = entries.get(value);
+        return ids != null ? Collections.unmodifiableSet(ids) : Set.of();
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        values.clear();
+    }
+
+    private void link(Object value, ObjectId id) {
+        entries.compute(value, (key, ids) -> {
+            if (ids == null) ids = ConcurrentHashMap.newKeySet();
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private void unlink(Object value, ObjectId id) {
+        entries.computeIfPresent(value, (key, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+}
@@ -0,0 +1,146 @@
+package net.weesli.core.index.types;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Range;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.RangeIndex;
+import net.weesli.core.index.ValueOrder;
+import net.weesli.services.json.JsonBase;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index over numbers, strings and booleans. Every document is one (value, id) entry in a skip list, so
+ * documents sharing a value need no bucket and adds and removes stay single atomic steps. Lists, objects and nulls
+ * are not indexed.
+ */
+public class OrderedIndex implements RangeIndex {
+
+    @Getter private final String field;
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<ObjectId, Entry> values = new ConcurrentHashMap<>(); // the entry of each id
+
+    public OrderedIndex(String field) {
+        this.field = field;
+    }
+
+    @Override
+    public IndexType getType() {
+        return IndexType.ORDERED;
+    }
+
+    @Override
+    public void put(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        Entry entry = ValueOrder.isOrdered(value) ? new Entry(value, id, 0) : null;
+        values.compute(id, (key, old) -> {
+            if (old != null) entries.remove(old);
+            if (entry != null) entries.add(entry);
+            return entry;
+        });
+    }
+
+    @Override
+    public void putIfAbsent(ObjectId id, JsonBase document) {
+        Object value = document.getData().get(field);
+        if (!ValueOrder.isOrdered(value)) return;
+        values.computeIfAbsent(id, key -> {
+            Entry entry = new Entry(value, id, 0);
+            entries.add(entry);
+            return entry;
+        });
+    }
+
+    @Override
+    public void remove(ObjectId id) {
+        values.computeIfPresent(id, (key, old) -> {
+            entries.remove(old);
+            return null;
+        });
+    }
+
+    @Override
+    public Set<ObjectId> lookup(Object value) {
+        if (!ValueOrder.isOrdered(value)) return null; // lists and objects are not indexed here
+        Set<ObjectId> ids = new LinkedHashSet<>();
+        range(Range.between(value, value), false).forEachRemaining(ids::add);
+        return ids;
+    }
+
+    @Override
+    public Iterator<ObjectId> range(Range range, boolean descending) {
+        NavigableSet<Entry> view = entries;
+        Object lower = range.from();
+        Object upper = range.to();
+        if (lower != null && upper != null) {
+            view = entries.subSet(new Entry(lower, null, range.fromInclusive() ? -1 : 1), true,
+                    new Entry(upper, null, range.toInclusive() ? 1 : -1), true);
+        } else if (lower != null) { // the open end of a one-sided range is the edge of the bound's type
+            view = entries.subSet(new Entry(lower, null, range.fromInclusive() ? -1 : 1), true,
+                    new Entry(new TypeEdge(ValueOrder.rank(lower), 1), null, 0), false);
+        } else if (upper != null) {
+            view = entries.subSet(new Entry(new TypeEdge(ValueOrder.rank(upper), -1), null, 0), false,
+                    new Entry(upper, null, range.toInclusive() ? 1 : -1), true);
+        }
+        Iterator<Entry> iterator = descending ? view.descendingIterator() : view.iterator();
+        return new Iterator<>() {
+            private ObjectId next = advance();
+
+            private ObjectId advance() {
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (ValueOrder.inRange(entry.value, range)) return entry.id;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ObjectId next() {
+                if (next == null) throw new NoSuchElementException();
+                ObjectId current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        values.clear();
+    }
+
+    // sorts before (side -1) or after (side 1) every value of a type rank
+    private record TypeEdge(int rank, int side) {}
+
+    // bound -1 sorts before every id of the value, 1 after every one, 0 is a stored entry
+    private record Entry(Object value, ObjectId id, int bound) implements Comparable<Entry> {
+        @Override
+        public int compareTo(Entry other) {
+            int result = compareValues(value, other.value);
+            if (result != 0) return result;
+            if (bound != 0 || other.bound != 0) return Integer.compare(bound, other.bound);
+            return id.getObjectId().compareTo(other.id.getObjectId());
+        }
+
+        private static int compareValues(Object a, Object b) {
+            if (!(a instanceof TypeEdge) && !(b instanceof TypeEdge)) return ValueOrder.compare(a, b);
+            int result = Integer.compare(a instanceof TypeEdge edge ? edge.rank() : ValueOrder.rank(a), b instanceof TypeEdge edge ? edge.rank() : ValueOrder.rank(b));
+            if (result != 0) return result;
+            return Integer.compare(a instanceof TypeEdge edge ? edge.side() : 0, b instanceof TypeEdge edge ? edge.side() : 0);
+        }
+    }
+}
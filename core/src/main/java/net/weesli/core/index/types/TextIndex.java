@@ -0,0 +1,225 @@
+package net.weesli.core.index.types;
+
+import lombok.Getter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.core.index.Tokenizer;
+import net.weesli.services.json.JsonBase;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full-text index over a string field (or a list of strings). Postings are (term, id) entries in one sorted set, so
+ * a term or a term prefix is a contiguous range. Term frequencies are kept per document for BM25 ranking and for
+ * removing a document's postings when it changes.
+ */
+public class TextIndex implements SecondaryIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    @Getter private final String field;
+    private final ConcurrentSkipListSet<Posting> postings = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<ObjectId, Map<String, Integer>> documents = new ConcurrentHashMap<>(); // term frequencies of each id
+    private final ConcurrentHashMap<String, Integer> frequencies = new ConcurrentHashMap<>(); // documents per term
+    private final AtomicLong totalLength = new AtomicLong();
+
+    public TextIndex(String field) {
+        this.field = field;
+    }
+
+    @Override
+    public IndexType getType() {
+        return IndexType.TEXT;
+    }
+
+    @Override
+    public void put(ObjectId id, JsonBase document) {
+        Map<String, Integer> terms = terms(document.getData().get(field));
+        documents.compute(id, (key, old) -> {
+            if (old != null) unlink(id, old);
+            if (terms.isEmpty()) return null;
+            link(id, terms);
+            return terms;
+        });
+    }
+
+    @Override
+    public void putIfAbsent(ObjectId id, JsonBase document) {
+        Map<String, Integer> terms = terms(document.getData().get(field));
+        if (terms.isEmpty()) return;
+        documents.computeIfAbsent(id, key -> {
+            link(id, terms);
+            return terms;
+        });
+    }
+
+    @Override
+    public void remove(ObjectId id) {
+        documents.computeIfPresent(id, (key, old) -> {
+            unlink(id, old);
+            return null;
+        });
+    }
+
+    // candidates for an equality match, the documents holding every term of the value
+    @Override
+    public Set<ObjectId> lookup(Object value) {
+        if (!(value instanceof String text) || Tokenizer.tokenize(text).isEmpty()) return null;
+        Set<ObjectId> ids = new LinkedHashSet<>();
+        for (Match match : search(Tokenizer.tokenize(text), true, 0)) {
+            ids.add(match.id());
+        }
+        return ids;
+    }
+
+    /**
+     * Ranks the documents matching the terms, a term ending with '*' matches every term starting with it.
+     * With matchAll every term has to be present, otherwise any of them. limit <= 0 returns every match.
+     */
+    public List<Match> search(List<String> query, boolean matchAll, int limit) {
+        List<String> terms = new ArrayList<>();
+        for (String term : query) {
+            boolean prefix = term.endsWith("*");
+            List<String> tokens = Tokenizer.tokenize(term);
+            for (int i = 0; i < tokens.size(); i++) {
+                terms.add(prefix && i == tokens.size() - 1 ? tokens.get(i) + "*" : tokens.get(i));
+            }
+        }
+        if (terms.isEmpty() || documents.isEmpty()) return List.of();
+        double averageLength = Math.max(1, (double) totalLength.get() / Math.max(1, documents.size()));
+        Map<ObjectId, Double> scores = new HashMap<>();
+        if (matchAll) { // walk the rarest term only, the others are checked on each candidate's own terms
+            String rarest = terms.get(0);
+            for (String term : terms) { // a prefix is only walked when there is no exact term, counting its range is a scan itself
+                if (rarest.endsWith("*") || (!term.endsWith("*") && frequency(term) < frequency(rarest))) rarest = term;
+            }
+            for (Posting posting : range(rarest)) {
+                Map<String, Integer> document = documents.get(posting.id);
+                if (document == null || scores.containsKey(posting.id)) continue;
+                double score = 0;
+                for (String term : terms) {
+                    double termScore = score(term, document, averageLength);
+                    if (termScore < 0) {
+                        score = -1;
+                        break;
+                    }
+                    score += termScore;
+                }
+                if (score >= 0) scores.put(posting.id, score);
+            }
+        } else {
+            for (String term : terms) {
+                for (Posting posting : range(term)) {
+                    if (scores.containsKey(posting.id)) continue;
+                    Map<String, Integer> document = documents.get(posting.id);
+                    if (document == null) continue;
+                    double score = 0;
+                    for (String other : terms) {
+                        score += Math.max(0, score(other, document, averageLength));
+                    }
+                    scores.put(posting.id, score);
+                }
+            }
+        }
+        List<Match> matches = new ArrayList<>(scores.size());
+        scores.forEach((id, score) -> matches.add(new Match(id, score)));
+        matches.sort(Comparator.comparingDouble(Match::score).reversed().thenComparing(match -> match.id().getObjectId()));
+        return limit > 0 && matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+
+    @Override
+    public int size() {
+        return documents.size();
+    }
+
+    @Override
+    public void clear() {
+        postings.clear();
+        documents.clear();
+        frequencies.clear();
+        totalLength.set(0);
+    }
+
+    // bm25 of one query term, -1 when the document does not contain it
+    private double score(String term, Map<String, Integer> document, double averageLength) {
+        int length = 0;
+        for (int count : document.values()) length += count;
+        double score = -1;
+        boolean prefix = term.endsWith("*");
+        String stem = prefix ? term.substring(0, term.length() - 1) : term;
+        for (Map.Entry<String, Integer> entry : prefix ? document.entrySet() : singleton(stem, document)) {
+            if (!entry.getKey().startsWith(stem)) continue;
+            double idf = Math.log(1 + (documents.size() - frequency(entry.getKey()) + 0.5) / (frequency(entry.getKey()) + 0.5));
+            double tf = entry.getValue();
+            score = Math.max(0, score) + idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+        }
+        return score;
+    }
+
+    private static Set<Map.Entry<String, Integer>> singleton(String term, Map<String, Integer> document) {
+        Integer count = document.get(term);
+        return count == null ? Set.of() : Set.of(Map.entry(term, count));
+    }
+
+    private int frequency(String term) {
+        return frequencies.getOrDefault(term, 0);
+    }
+
+    private NavigableSet<Posting> range(String term) {
+        if (term.endsWith("*")) {
+            String stem = term.substring(0, term.length() - 1);
+            return postings.subSet(new Posting(stem, null), true, new Posting(stem + Character.MAX_VALUE, null), false);
+        }
+        return postings.subSet(new Posting(term, null), true, new Posting(term + '\0', null), false);
+    }
+
+    private void link(ObjectId id, Map<String, Integer> terms) {
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+            postings.add(new Posting(entry.getKey(), id));
+            frequencies.merge(entry.getKey(), 1, Integer::sum);
+            length += entry.getValue();
+        }
+        totalLength.addAndGet(length);
+    }
+
+    private void unlink(ObjectId id, Map<String, Integer> terms) {
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : terms.entrySet()) {
+            postings.remove(new Posting(entry.getKey(), id));
+            frequencies.computeIfPresent(entry.getKey(), (key, count) -> count <= 1 ? null : count - 1);
+            length += entry.getValue();
+        }
+        totalLength.addAndGet(-length);
+    }
+
+    private static Map<String, Integer> terms(Object value) {
+        Map<String, Integer> terms = new HashMap<>();
+        if (value instanceof String text) {
+            Tokenizer.tokenize(text).forEach(term -> terms.merge(term, 1, Integer::sum));
+        } else if (value instanceof List<?> list) {
+            for (Object item : list) {
+                if (item instanceof String text) Tokenizer.tokenize(text).forEach(term -> terms.merge(term, 1, Integer::sum));
+            }
+        }
+        return terms;
+    }
+
+    public record Match(ObjectId id, double score) {
+    }
+
+    // a null id sorts before every id of the term
+    private record Posting(String term, ObjectId id) implements Comparable<Posting> {
+        @Override
+        public int compareTo(Posting other) {
+            int result = term.compareTo(other.term);
+            if (result != 0) return result;
+            if (id == null || other.id == null) return id == null ? (other.id == null ? 0 : -1) : 1;
+            return id.getObjectId().compareTo(other.id.getObjectId());
+        }
+    }
+}
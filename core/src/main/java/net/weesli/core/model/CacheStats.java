@@ -0,0 +1,24 @@
+package net.weesli.core.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public record CacheStats(long hits, long misses, long evictions, long entries, long weightedSize, long maximumWeight) {
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("hitRate", hitRate());
+        map.put("evictions", evictions);
+        map.put("entries", entries);
+        map.put("weightedSize", weightedSize);
+        map.put("maximumWeight", maximumWeight);
+        return map;
+    }
+}
@@ -1,51 +1,46 @@
 package net.weesli.core.model;
 
-import com.dslplatform.json.CompiledJson;
-import com.dslplatform.json.JsonAttribute;
-
 import java.util.List;
-@CompiledJson
-public class DataMeta {
-
-    @JsonAttribute(name = "id")
-    private String id;
-    @JsonAttribute(name = "createdAt")
-    private String createdAt;
-    @JsonAttribute(name = "updatedAt")
-    private String updatedAt;
-    @JsonAttribute(name = "fields")
-    private List<String> fields;
+import java.util.Objects;
 
-    public DataMeta(){
+// kept for every document of a collection, so it holds no more than an id, two epoch millis and a shared shape
+public final class DataMeta {
 
-    }
+    private final String id;
+    private final long createdAt; // epoch millis
+    private final long updatedAt; // epoch millis
+    private final FieldShape shape;
 
-    public DataMeta(String id, String createdAt, String updatedAt, List<String> fields) {
+    public DataMeta(String id, long createdAt, long updatedAt, FieldShape shape) {
         this.id = id;
         this.createdAt = createdAt;
         this.updatedAt = updatedAt;
-        this.fields = fields;
+        this.shape = shape;
     }
 
-
     public boolean hasField(String field){
-        return fields != null && fields.contains(field);
+        return shape.contains(field);
     }
 
-    public void changeFields(List<String> fields){
-        this.fields = fields;
+    @Override
+    public boolean equals(Object obj) { // one record per document, the id is the identity
+        if (this == obj) return true;
+        if (!(obj instanceof DataMeta other)) return false;
+        return Objects.equals(id, other.id);
     }
 
-    public void changeUpdatedAt(String updatedAt){
-        this.updatedAt = updatedAt;
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(id);
     }
+
     @Override
     public String toString() {
         return "DataMeta{" +
                 "id='" + id + '\'' +
-                ", createdAt='" + createdAt + '\'' +
-                ", updatedAt='" + updatedAt + '\'' +
-                ", fields=" + fields +
+                ", createdAt=" + createdAt +
+                ", updatedAt=" + updatedAt +
+                ", fields=" + shape +
                 '}';
     }
 
@@ -54,30 +49,18 @@ public class DataMeta {
     }
 
     public List<String> getFields() {
-        return fields;
+        return shape.getNames();
     }
 
-    public String getCreatedAt() {
-        return createdAt;
+    public FieldShape getShape() {
+        return shape;
     }
 
-    public String getUpdatedAt() {
-        return updatedAt;
-    }
-
-    public void setCreatedAt(String createdAt) {
-        this.createdAt = createdAt;
-    }
-
-    public void setFields(List<String> fields) {
-        this.fields = fields;
-    }
-
-    public void setId(String id) {
-        this.id = id;
+    public long getCreatedAt() {
+        return createdAt;
     }
 
-    public void setUpdatedAt(String updatedAt) {
-        this.updatedAt = updatedAt;
+    public long getUpdatedAt() {
+        return updatedAt;
     }
 }
@@ -0,0 +1,57 @@
+package net.weesli.core.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The field names of one collection, each numbered once, and the distinct field sets (shapes) of its documents.
+ * Metadata records point at a shared shape instead of holding their own list of names, so a collection of millions
+ * of documents keeps one copy of every name and usually only a handful of shapes.
+ */
+public class FieldDictionary {
+
+    private record Field(String name, int ordinal) {
+    }
+
+    private final ConcurrentHashMap<String, Field> fields = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ConcurrentHashMap<FieldShape, FieldShape> shapes = new ConcurrentHashMap<>();
+
+    // -1 for a name no document of the collection ever had
+    public int ordinal(String name) {
+        Field field = fields.get(name);
+        return field != null ? field.ordinal() : -1;
+    }
+
+    // the shared shape of the names, numbering the names seen for the first time
+    public FieldShape shape(Collection<String> names) {
+        Field[] found = new Field[names.size()];
+        long[] bits = new long[0];
+        int count = 0;
+        for (String name : names) {
+            Field field = fields.computeIfAbsent(name, key -> new Field(key, next.getAndIncrement()));
+            int word = field.ordinal() >>> 6;
+            if (word >= bits.length) bits = Arrays.copyOf(bits, word + 1);
+            bits[word] |= 1L << field.ordinal();
+            found[count++] = field;
+        }
+        FieldShape key = new FieldShape(this, bits, null);
+        FieldShape shape = shapes.get(key);
+        if (shape != null) return shape;
+        List<String> canonical = Arrays.stream(found, 0, count)
+                .sorted(Comparator.comparingInt(Field::ordinal))
+                .map(Field::name)
+                .distinct()
+                .toList();
+        return shapes.computeIfAbsent(key, k -> new FieldShape(this, k.getBits(), canonical));
+    }
+
+    public int getFieldCount() {
+        return fields.size();
+    }
+
+    public int getShapeCount() {
+        return shapes.size();
+    }
+}
@@ -0,0 +1,55 @@
+package net.weesli.core.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+// an interned set of field names of one collection, a bit per name ordinal of its dictionary, compare with ==
+public final class FieldShape {
+
+    private final FieldDictionary dictionary;
+    private final long[] bits; // the last word is never zero
+    private final List<String> names; // in ordinal order
+    private final int hash;
+
+    FieldShape(FieldDictionary dictionary, long[] bits, List<String> names) {
+        this.dictionary = dictionary;
+        this.bits = bits;
+        this.names = names;
+        this.hash = Arrays.hashCode(bits);
+    }
+
+    public boolean contains(String name) {
+        int ordinal = dictionary.ordinal(name);
+        return ordinal >= 0 && contains(ordinal);
+    }
+
+    public boolean contains(int ordinal) {
+        int word = ordinal >>> 6;
+        return word < bits.length && (bits[word] & (1L << ordinal)) != 0;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    long[] getBits() {
+        return bits;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof FieldShape other)) return false;
+        return dictionary == other.dictionary && Arrays.equals(bits, other.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(names);
+    }
+}
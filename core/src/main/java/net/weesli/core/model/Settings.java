@@ -26,4 +26,36 @@ public class Settings implements CoreSettings {
         return settings.getAsJson(key);
     }
 
+    // section values fall back to the default when an older settings.json does not have them yet
+    public String getString(String section, String key, String defaultValue) {
+        Object value = getValue(section, key);
+        return value != null ? value.toString() : defaultValue;
+    }
+
+    public long getLong(String section, String key, long defaultValue) {
+        Object value = getValue(section, key);
+        if (value instanceof Number number) return number.longValue();
+        if (value instanceof String string) {
+            try {
+                return Long.parseLong(string);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean getBoolean(String section, String key, boolean defaultValue) {
+        Object value = getValue(section, key);
+        if (value instanceof Boolean bool) return bool;
+        if (value instanceof String string) return Boolean.parseBoolean(string);
+        return defaultValue;
+    }
+
+    private Object getValue(String section, String key) {
+        if (settings == null) return null;
+        JsonBase node = settings.getAsJson(section);
+        if (node == null) return null;
+        return node.getData().get(key);
+    }
+
 }
@@ -0,0 +1,25 @@
+package net.weesli.core.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public record WritePoolMetrics(long queueDepth, long enqueued, long merged, long flushed, long flushBatches,
+                               double averageFlushLatencyMs, double maxFlushLatencyMs) {
+
+    public double mergeRatio() {
+        return enqueued == 0 ? 0 : (double) merged / enqueued;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("queueDepth", queueDepth);
+        map.put("enqueued", enqueued);
+        map.put("merged", merged);
+        map.put("mergeRatio", mergeRatio());
+        map.put("flushed", flushed);
+        map.put("flushBatches", flushBatches);
+        map.put("averageFlushLatencyMs", averageFlushLatencyMs);
+        map.put("maxFlushLatencyMs", maxFlushLatencyMs);
+        return map;
+    }
+}
@@ -1,7 +1,23 @@
 package net.weesli.core.model;
 
-import net.weesli.api.database.Database;
 import net.weesli.api.model.ObjectId;
+import net.weesli.core.database.CollectionImpl;
 
-public record WriteTask(Database database, ObjectId objectId, byte[] data) {
+// data is null for a delete, writes counts how many enqueued writes were merged into this task
+public record WriteTask(CollectionImpl collection, ObjectId objectId, byte[] data, long walSeq, long enqueuedAt, int writes) {
+
+    public WriteTask(CollectionImpl collection, ObjectId objectId, byte[] data, long walSeq) {
+        this(collection, objectId, data, walSeq, System.nanoTime(), 1);
+    }
+
+    public boolean isDelete() {
+        return data == null;
+    }
+
+    // the write later in the wal wins and keeps its wal record, whatever order the two were enqueued in, so the
+    // value written matches what a replay would restore. This task keeps its enqueue time.
+    public WriteTask merge(WriteTask other) {
+        WriteTask newer = other.walSeq >= walSeq ? other : this;
+        return new WriteTask(collection, objectId, newer.data, newer.walSeq, enqueuedAt, writes + other.writes);
+    }
 }
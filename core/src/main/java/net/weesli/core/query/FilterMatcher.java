@@ -0,0 +1,64 @@
+package net.weesli.core.query;
+
+import net.weesli.api.model.Filter;
+import net.weesli.core.index.ValueOrder;
+
+import java.util.Map;
+
+// evaluates a filter against a parsed document, equality works as JsonBase.isValueMatch and ranges as ValueOrder
+public final class FilterMatcher {
+
+    public static final Object MISSING = new Object(); // the document has no such field, a json null is kept as null
+
+    private FilterMatcher() {
+    }
+
+    public static boolean matches(Map<String, Object> document, Filter filter) {
+        return switch (filter) {
+            case Filter.Eq eq -> {
+                Object value = resolve(document, eq.field());
+                yield value != MISSING && value != null && value.equals(eq.value());
+            }
+            case Filter.In in -> {
+                Object value = resolve(document, in.field());
+                yield value != MISSING && value != null && in.values().contains(value);
+            }
+            case Filter.Compare compare -> ValueOrder.inRange(resolve(document, compare.field()), compare.range());
+            case Filter.Exists exists -> resolve(document, exists.field()) != MISSING;
+            case Filter.And and -> {
+                for (Filter child : and.filters()) {
+                    if (!matches(document, child)) yield false;
+                }
+                yield true;
+            }
+            case Filter.Or or -> {
+                for (Filter child : or.filters()) {
+                    if (matches(document, child)) yield true;
+                }
+                yield false;
+            }
+            case Filter.Not not -> !matches(document, not.filter());
+        };
+    }
+
+    // a key of the document wins over a nested path with the same name
+    public static Object resolve(Map<String, Object> document, String path) {
+        if (document.containsKey(path)) return document.get(path);
+        if (path.indexOf('.') < 0) return MISSING;
+        Object current = document;
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('.', start);
+            if (end < 0) end = path.length();
+            if (!(current instanceof Map<?, ?> map) || !map.containsKey(path.substring(start, end))) return MISSING;
+            current = map.get(path.substring(start, end));
+            start = end + 1;
+        }
+        return current;
+    }
+
+    // true when the field is a plain key, indexes only hold top level keys
+    public static boolean isTopLevel(String path) {
+        return path.indexOf('.') < 0;
+    }
+}
@@ -0,0 +1,246 @@
+package net.weesli.core.query;
+
+import net.weesli.api.model.Filter;
+import net.weesli.api.model.Pipeline;
+import net.weesli.api.model.Query;
+import net.weesli.core.cache.CollectionDataImpl;
+import net.weesli.core.index.ValueOrder;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Runs an aggregation pipeline over a collection. The leading $match stages become one filter for the planner, so
+ * indexes narrow the documents that are read, and a $count right after them is answered like Collection.count. The
+ * other stages pull the output of the stage before as they go: $group and $sort hold what they are given, $limit stops
+ * the reading. Documents come from the decode cache and are never changed, every stage builds new ones.
+ */
+public final class PipelineRunner {
+
+    private record Row(Object[] keys, Map<String, Object> document, long sequence) {}
+
+    private PipelineRunner() {
+    }
+
+    public static List<Map<String, Object>> run(Pipeline pipeline, QueryPlanner planner, CollectionDataImpl data) {
+        List<Pipeline.Stage> stages = pipeline.stages();
+        List<Filter> filters = new ArrayList<>();
+        int start = 0;
+        while (start < stages.size() && stages.get(start) instanceof Pipeline.Match match) {
+            filters.add(match.filter());
+            start++;
+        }
+        Filter filter = filters.size() == 1 ? filters.get(0) : new Filter.And(List.copyOf(filters));
+        Iterator<Map<String, Object>> documents;
+        if (start < stages.size() && stages.get(start) instanceof Pipeline.Count count) {
+            Long matches = planner.count(filter); // indexes and metadata count without reading documents
+            documents = List.of(single(count.field(), matches != null ? matches : QueryRunner.count(filter, planner.plan(filter, List.of()), data))).iterator();
+            start++;
+        } else {
+            documents = QueryRunner.documents(filter, planner.plan(filter, List.of()), data);
+        }
+        for (int i = start; i < stages.size(); i++) {
+            documents = apply(stages.get(i), documents, window(stages, i + 1));
+        }
+        List<Map<String, Object>> result = new ArrayList<>();
+        documents.forEachRemaining(result::add);
+        return result;
+    }
+
+    private static Iterator<Map<String, Object>> apply(Pipeline.Stage stage, Iterator<Map<String, Object>> input, int window) {
+        return switch (stage) {
+            case Pipeline.Match match -> lazy(() -> {
+                while (input.hasNext()) {
+                    Map<String, Object> document = input.next();
+                    if (FilterMatcher.matches(document, match.filter())) return document;
+                }
+                return null;
+            });
+            case Pipeline.Group group -> group(group, input).iterator();
+            case Pipeline.Sort sort -> sort(sort.keys(), input, window).iterator();
+            case Pipeline.Skip skip -> {
+                int[] skipped = {0};
+                yield lazy(() -> {
+                    for (; skipped[0] < skip.count() && input.hasNext(); skipped[0]++) input.next();
+                    return input.hasNext() ? input.next() : null;
+                });
+            }
+            case Pipeline.Limit limit -> {
+                int[] returned = {0};
+                yield lazy(() -> { // checks the limit first so nothing is read past it
+                    if (returned[0] >= limit.count() || !input.hasNext()) return null;
+                    returned[0]++;
+                    return input.next();
+                });
+            }
+            case Pipeline.Project project -> lazy(() -> input.hasNext() ? project(input.next(), project.fields()) : null);
+            case Pipeline.Count count -> {
+                long documents = 0;
+                for (; input.hasNext(); input.next()) documents++;
+                yield List.of(single(count.field(), documents)).iterator();
+            }
+        };
+    }
+
+    // groups in the order their first document came
+    private static List<Map<String, Object>> group(Pipeline.Group group, Iterator<Map<String, Object>> input) {
+        Map<Object, Accumulator[]> groups = new LinkedHashMap<>();
+        List<Map.Entry<String, Pipeline.Accumulator>> fields = new ArrayList<>(group.accumulators().entrySet());
+        while (input.hasNext()) {
+            Map<String, Object> document = input.next();
+            Accumulator[] accumulators = groups.computeIfAbsent(evaluate(document, group.key()), key -> {
+                Accumulator[] created = new Accumulator[fields.size()];
+                for (int i = 0; i < created.length; i++) created[i] = new Accumulator(fields.get(i).getValue().operator());
+                return created;
+            });
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i].add(evaluate(document, fields.get(i).getValue().value()));
+            }
+        }
+        List<Map<String, Object>> result = new ArrayList<>(groups.size());
+        for (Map.Entry<Object, Accumulator[]> entry : groups.entrySet()) {
+            Map<String, Object> document = new LinkedHashMap<>();
+            document.put("_id", entry.getKey());
+            for (int i = 0; i < fields.size(); i++) document.put(fields.get(i).getKey(), entry.getValue()[i].result());
+            result.add(document);
+        }
+        return result;
+    }
+
+    // a stable sort, with a window only the first window documents are kept while reading
+    private static List<Map<String, Object>> sort(List<Query.Sort> keys, Iterator<Map<String, Object>> input, int window) {
+        Comparator<Object[]> keyOrder = QueryRunner.keyOrder(keys);
+        Comparator<Row> order = (a, b) -> {
+            int result = keyOrder.compare(a.keys(), b.keys());
+            return result != 0 ? result : Long.compare(a.sequence(), b.sequence());
+        };
+        PriorityQueue<Row> top = new PriorityQueue<>(order.reversed());
+        List<Row> rows = new ArrayList<>();
+        long sequence = 0;
+        while (input.hasNext()) {
+            Map<String, Object> document = input.next();
+            Row row = new Row(QueryRunner.keys(document, keys), document, sequence++);
+            if (window > 0) {
+                top.add(row);
+                if (top.size() > window) top.poll();
+            } else {
+                rows.add(row);
+            }
+        }
+        rows.addAll(top);
+        rows.sort(order);
+        List<Map<String, Object>> result = new ArrayList<>(rows.size());
+        for (Row row : rows) result.add(row.document());
+        return result;
+    }
+
+    // how many documents the stages from index on read at most, 0 when they may read every one
+    private static int window(List<Pipeline.Stage> stages, int index) {
+        long skip = 0;
+        for (int i = index; i < stages.size(); i++) {
+            if (stages.get(i) instanceof Pipeline.Skip next) skip += next.count();
+            else if (stages.get(i) instanceof Pipeline.Limit limit) return (int) Math.min(Integer.MAX_VALUE, skip + limit.count());
+            else if (!(stages.get(i) instanceof Pipeline.Project)) return 0;
+        }
+        return 0;
+    }
+
+    private static Map<String, Object> project(Map<String, Object> document, List<String> fields) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        if (document.containsKey("$id")) values.put("$id", document.get("$id"));
+        if (document.containsKey("_id")) values.put("_id", document.get("_id"));
+        return QueryRunner.select(document, fields, values);
+    }
+
+    // "$field" reads the field, a missing one is null, a map is evaluated value by value, anything else is a constant
+    private static Object evaluate(Map<String, Object> document, Object expression) {
+        if (expression instanceof String path && path.startsWith("$") && path.length() > 1) {
+            Object value = FilterMatcher.resolve(document, path.substring(1));
+            return value == FilterMatcher.MISSING ? null : value;
+        }
+        if (expression instanceof Map<?, ?> map) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) values.put(String.valueOf(entry.getKey()), evaluate(document, entry.getValue()));
+            return values;
+        }
+        return expression;
+    }
+
+    private static Map<String, Object> single(String field, long value) {
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put(field, value);
+        return document;
+    }
+
+    private static Iterator<Map<String, Object>> lazy(Supplier<Map<String, Object>> source) { // null ends it
+        return new Iterator<>() {
+            private Map<String, Object> next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = source.get();
+                    done = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map<String, Object> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Map<String, Object> current = next;
+                next = null;
+                return current;
+            }
+        };
+    }
+
+    // sum stays a whole number until a fraction or an overflow comes, sum and avg skip what is not a number
+    private static final class Accumulator {
+        private final String operator;
+        private long count;
+        private long whole;
+        private double fraction;
+        private boolean decimal;
+        private Object extreme;
+
+        private Accumulator(String operator) {
+            this.operator = operator;
+        }
+
+        private void add(Object value) {
+            switch (operator) {
+                case "count" -> count++;
+                case "sum", "avg" -> {
+                    if (!(value instanceof Number number)) return;
+                    count++;
+                    if (!decimal && (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte)) {
+                        try {
+                            whole = Math.addExact(whole, number.longValue());
+                            return;
+                        } catch (ArithmeticException overflow) {
+                            decimal = true;
+                        }
+                    }
+                    decimal = true;
+                    fraction += number.doubleValue();
+                }
+                case "min", "max" -> {
+                    if (!ValueOrder.isOrdered(value)) return;
+                    int compared = extreme == null ? 0 : ValueOrder.compare(value, extreme);
+                    if (extreme == null || (operator.equals("min") ? compared < 0 : compared > 0)) extreme = value;
+                }
+            }
+        }
+
+        private Object result() {
+            return switch (operator) {
+                case "count" -> count;
+                case "sum" -> decimal ? whole + fraction : (Object) whole;
+                case "avg" -> count == 0 ? null : (whole + fraction) / count;
+                default -> extreme;
+            };
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package net.weesli.core.query;
+
+import net.weesli.api.model.ObjectId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How a query reads its candidates. Candidates are a superset of the matches, the runner checks every document
+ * against the filter. An exact plan yields nothing else than matches (as of planning), an ordered one yields its ids in
+ * the order of the single sort key.
+ */
+public record QueryPlan(String access, String field, long estimate, boolean exact, boolean ordered, Candidates candidates) {
+
+    public interface Candidates {
+        Iterator<ObjectId> open(int wanted); // wanted matches, 0 for all, only an exact plan may stop early on it
+    }
+
+    // reads documents no index narrowed down to, every candidate is decoded and matched
+    public boolean isScan() {
+        return access.equals("scan") || access.equals("fields");
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("access", access);
+        if (field != null) map.put("field", field);
+        map.put("estimate", estimate);
+        map.put("exact", exact);
+        return map;
+    }
+}
@@ -0,0 +1,297 @@
+package net.weesli.core.query;
+
+import net.weesli.api.model.Filter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Query;
+import net.weesli.api.model.Range;
+import net.weesli.core.index.CollectionIndexes;
+import net.weesli.core.index.IndexMetaManager;
+import net.weesli.core.index.IndexType;
+import net.weesli.core.index.RangeIndex;
+import net.weesli.core.index.SecondaryIndex;
+import net.weesli.core.index.types.CompositeIndex;
+import net.weesli.core.model.DataMeta;
+import net.weesli.core.model.ObjectIdImpl;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Picks the cheapest way to read the candidates of a filter. Every predicate gets an access path when it has one: an
+ * index lookup for $eq and $in, a range walk for comparisons, the metadata of the documents having the field otherwise,
+ * since no predicate but $exists:false and $ne matches a document without its field. An $and takes its cheapest child
+ * (or a composite index over its equalities), an $or the union of its children when all of them have one, and bitmap
+ * indexes answer whatever they can. With nothing better every document is scanned. A single sort key with an ordered
+ * index is walked in order instead, so a limited query stops after the first matches.
+ */
+public class QueryPlanner {
+
+    private final CollectionIndexes indexes;
+    private final IndexMetaManager metaManager;
+    private final String collection;
+
+    public QueryPlanner(CollectionIndexes indexes, IndexMetaManager metaManager, String collection) {
+        this.indexes = indexes;
+        this.metaManager = metaManager;
+        this.collection = collection;
+    }
+
+    public QueryPlan plan(Filter filter, List<Query.Sort> sort) {
+        QueryPlan best = access(filter);
+        CollectionIndexes.Selection selection = indexes.select(filter);
+        if (selection != null && (best == null || selection.exact() || selection.ordinals().getCardinality() < best.estimate())) {
+            best = new QueryPlan("bitmap", null, selection.ordinals().getCardinality(), selection.exact(), false,
+                    wanted -> indexes.getOrdinals().toIds(selection.ordinals(), selection.exact() ? wanted : 0).iterator());
+        }
+        if (sort.size() == 1) {
+            QueryPlan ordered = ordered(filter, sort.get(0), best);
+            if (ordered != null) return ordered;
+        }
+        return best != null ? best : scan();
+    }
+
+    /**
+     * The number of matches from the indexes and the metadata alone, null when a predicate needs the documents. Hash and
+     * bitmap indexes answer equality as the matcher does, ordered indexes ranges, the metadata $exists and the total.
+     */
+    public Long count(Filter filter) {
+        CollectionIndexes.Selection selection = indexes.select(filter);
+        if (selection != null && selection.exact()) return selection.ordinals().getCardinality();
+        if (filter instanceof Filter.And and && and.filters().isEmpty()) return (long) metaManager.getRecords(collection).size();
+        if (filter instanceof Filter.Exists exists && FilterMatcher.isTopLevel(exists.field())) {
+            return (long) metaManager.getIdsWithField(collection, exists.field()).size();
+        }
+        Set<ObjectId> ids = matches(filter);
+        return ids != null ? (long) ids.size() : null;
+    }
+
+    private Set<ObjectId> matches(Filter filter) {
+        return switch (filter) {
+            case Filter.Eq eq -> exactLookup(eq.field(), List.of(eq.value()));
+            case Filter.In in -> exactLookup(in.field(), in.values());
+            case Filter.Compare compare -> {
+                if (!FilterMatcher.isTopLevel(compare.field()) || !(indexes.get(compare.field()) instanceof RangeIndex index)) yield null;
+                Set<ObjectId> ids = new HashSet<>(); // an id being updated may show up twice
+                index.range(compare.range(), false).forEachRemaining(ids::add);
+                yield ids;
+            }
+            case Filter.Exists exists -> FilterMatcher.isTopLevel(exists.field()) ? toIds(metaManager.getIdsWithField(collection, exists.field())) : null;
+            case Filter.And and -> {
+                Set<ObjectId> ids = null;
+                for (Filter child : and.filters()) {
+                    Set<ObjectId> found = matches(child);
+                    if (found == null) yield null;
+                    if (ids == null) ids = new HashSet<>(found);
+                    else ids.retainAll(found);
+                }
+                yield ids != null ? ids : allIds();
+            }
+            case Filter.Or or -> {
+                Set<ObjectId> ids = new HashSet<>();
+                for (Filter child : or.filters()) {
+                    Set<ObjectId> found = matches(child);
+                    if (found == null) yield null;
+                    ids.addAll(found);
+                }
+                yield ids;
+            }
+            case Filter.Not not -> {
+                Set<ObjectId> found = matches(not.filter());
+                if (found == null) yield null;
+                Set<ObjectId> ids = allIds();
+                ids.removeAll(found);
+                yield ids;
+            }
+        };
+    }
+
+    // an ordered index compares numbers across types, only hash and bitmap keys are equal as the matcher has it
+    private Set<ObjectId> exactLookup(String field, List<Object> values) {
+        SecondaryIndex index = FilterMatcher.isTopLevel(field) ? indexes.get(field) : null;
+        if (index == null || (index.getType() != IndexType.HASH && index.getType() != IndexType.BITMAP)) return null;
+        Set<ObjectId> ids = new HashSet<>();
+        for (Object value : values) {
+            if (value == null) continue; // a null value never matches
+            Set<ObjectId> found = index.lookup(value);
+            if (found == null) return null;
+            ids.addAll(found);
+        }
+        return ids;
+    }
+
+    private Set<ObjectId> toIds(Set<String> keys) {
+        Set<ObjectId> ids = new HashSet<>(keys.size());
+        for (String key : keys) ids.add(ObjectIdImpl.valueOf(key));
+        return ids;
+    }
+
+    private Set<ObjectId> allIds() {
+        java.util.Collection<DataMeta> records = metaManager.getRecords(collection);
+        Set<ObjectId> ids = new HashSet<>(records.size());
+        for (DataMeta meta : records) ids.add(ObjectIdImpl.valueOf(meta.getId()));
+        return ids;
+    }
+
+    private QueryPlan access(Filter filter) {
+        return switch (filter) {
+            case Filter.Eq eq -> lookup(eq.field(), List.of(eq.value()));
+            case Filter.In in -> lookup(in.field(), in.values());
+            case Filter.Compare compare -> range(compare.field(), compare.range());
+            case Filter.Exists exists -> fields(exists.field());
+            case Filter.And and -> {
+                QueryPlan best = composite(and);
+                for (Filter child : and.filters()) {
+                    QueryPlan plan = access(child);
+                    if (plan != null && (best == null || plan.estimate() < best.estimate())) best = plan;
+                }
+                yield best;
+            }
+            case Filter.Or or -> union(or);
+            case Filter.Not not -> null; // matches documents without the field too
+        };
+    }
+
+    private QueryPlan lookup(String field, List<Object> values) {
+        SecondaryIndex index = FilterMatcher.isTopLevel(field) ? indexes.get(field) : null;
+        if (index != null) {
+            Set<ObjectId> ids = values.size() == 1 ? index.lookup(values.get(0)) : new LinkedHashSet<>();
+            for (int i = 0; values.size() > 1 && ids != null && i < values.size(); i++) {
+                Set<ObjectId> found = index.lookup(values.get(i));
+                if (found == null) ids = null;
+                else ids.addAll(found);
+            }
+            if (ids != null) {
+                Set<ObjectId> candidates = ids;
+                return new QueryPlan("index", field, candidates.size(), false, false, wanted -> candidates.iterator());
+            }
+        }
+        return fields(field);
+    }
+
+    private QueryPlan range(String field, Range range) {
+        if (FilterMatcher.isTopLevel(field) && indexes.get(field) instanceof RangeIndex index) {
+            long estimate = Math.max(1, metaManager.getRecords(collection).size() / 3); // no statistics, a third is the usual guess
+            return new QueryPlan("range", field, estimate, false, false, wanted -> new Chain(List.of(() -> index.range(range, false)), new HashSet<>()));
+        }
+        return fields(field);
+    }
+
+    // a nested path can only match documents that have its first part, or the whole path as a key
+    private QueryPlan fields(String field) {
+        Set<String> ids = metaManager.getIdsWithField(collection, field);
+        if (!FilterMatcher.isTopLevel(field)) {
+            Set<String> parent = metaManager.getIdsWithField(collection, field.substring(0, field.indexOf('.')));
+            if (ids.isEmpty()) {
+                ids = parent;
+            } else {
+                ids = new LinkedHashSet<>(ids);
+                ids.addAll(parent);
+            }
+        }
+        Set<String> candidates = ids;
+        return new QueryPlan("fields", field, candidates.size(), false, false, wanted -> map(candidates.iterator(), ObjectIdImpl::valueOf));
+    }
+
+    private QueryPlan composite(Filter.And and) {
+        Map<String, Object> where = new LinkedHashMap<>();
+        for (Filter child : and.filters()) {
+            if (child instanceof Filter.Eq eq && FilterMatcher.isTopLevel(eq.field())) where.put(eq.field(), eq.value());
+        }
+        CompositeIndex composite = where.isEmpty() ? null : indexes.findComposite(where, null);
+        if (composite == null) return null;
+        List<ObjectId> ids = composite.match(where, null, null);
+        return new QueryPlan("composite", composite.getField(), ids.size(), false, false, wanted -> ids.iterator());
+    }
+
+    private QueryPlan union(Filter.Or or) {
+        List<QueryPlan> plans = new ArrayList<>();
+        long estimate = 0;
+        for (Filter child : or.filters()) {
+            QueryPlan plan = access(child);
+            if (plan == null) return null; // one branch without an access path needs the scan anyway
+            plans.add(plan);
+            estimate += plan.estimate();
+        }
+        return new QueryPlan("union", null, estimate, false, false,
+                wanted -> new Chain(plans.stream().<Supplier<Iterator<ObjectId>>>map(plan -> () -> plan.candidates().open(0)).toList(), new HashSet<>()));
+    }
+
+    // walks the sort field's index when nothing narrows better, documents without an ordered value follow from a scan
+    private QueryPlan ordered(Filter filter, Query.Sort sort, QueryPlan best) {
+        String field = sort.field();
+        if (!FilterMatcher.isTopLevel(field) || !(indexes.get(field) instanceof RangeIndex index)) return null;
+        if (best != null && (!field.equals(best.field()) || !(best.access().equals("range") || best.access().equals("fields")))) return null;
+        Range range = rangeOf(filter, field);
+        long estimate = best != null ? best.estimate() : metaManager.getRecords(collection).size();
+        if (range != null) { // the comparison needs an ordered value, the walk yields every candidate
+            return new QueryPlan("order", field, estimate, false, true, wanted -> new Chain(List.of(() -> index.range(range, sort.descending())), new HashSet<>()));
+        }
+        return new QueryPlan("order", field, estimate, false, true,
+                wanted -> new Chain(List.of(() -> index.range(Range.all(), sort.descending()), () -> scan().candidates().open(0)), new HashSet<>()));
+    }
+
+    private static Range rangeOf(Filter filter, String field) {
+        if (filter instanceof Filter.Compare compare && compare.field().equals(field)) return compare.range();
+        if (filter instanceof Filter.And and) {
+            for (Filter child : and.filters()) {
+                if (child instanceof Filter.Compare compare && compare.field().equals(field)) return compare.range();
+            }
+        }
+        return null;
+    }
+
+    private QueryPlan scan() {
+        java.util.Collection<DataMeta> records = metaManager.getRecords(collection);
+        return new QueryPlan("scan", null, records.size(), false, false, wanted -> map(records.iterator(), meta -> ObjectIdImpl.valueOf(meta.getId())));
+    }
+
+    private static <T> Iterator<ObjectId> map(Iterator<T> source, Function<T, ObjectId> mapper) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public ObjectId next() {
+                return mapper.apply(source.next());
+            }
+        };
+    }
+
+    // opens the sources one after the other once the previous ran out, skipping ids seen before: a range walk may
+    // yield an id being updated twice and the branches of a union overlap
+    private static final class Chain implements Iterator<ObjectId> {
+        private final Iterator<Supplier<Iterator<ObjectId>>> sources;
+        private final Set<ObjectId> seen;
+        private Iterator<ObjectId> current = Collections.emptyIterator();
+        private ObjectId next;
+
+        private Chain(List<Supplier<Iterator<ObjectId>>> sources, Set<ObjectId> seen) {
+            this.sources = sources.iterator();
+            this.seen = seen;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                while (!current.hasNext()) {
+                    if (!sources.hasNext()) return false;
+                    current = sources.next().get();
+                }
+                ObjectId id = current.next();
+                if (seen.add(id)) next = id;
+            }
+            return true;
+        }
+
+        @Override
+        public ObjectId next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            ObjectId id = next;
+            next = null;
+            return id;
+        }
+    }
+}
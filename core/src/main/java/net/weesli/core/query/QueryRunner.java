@@ -0,0 +1,238 @@
+package net.weesli.core.query;
+
+import net.weesli.api.model.Filter;
+import net.weesli.api.model.ObjectId;
+import net.weesli.api.model.Query;
+import net.weesli.core.Main;
+import net.weesli.core.cache.CollectionDataImpl;
+import net.weesli.core.index.ValueOrder;
+import net.weesli.core.util.CompressUtil;
+import net.weesli.services.json.JsonBase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiFunction;
+
+// reads the candidates of a plan and keeps the matching documents, then sorts, skips, limits and projects them
+public final class QueryRunner {
+
+    private record Match(ObjectId id, byte[] entry, Object[] keys, long sequence) {}
+
+    private QueryRunner() {
+    }
+
+    public static List<byte[]> run(Query query, QueryPlan plan, CollectionDataImpl data) {
+        boolean sorting = !query.sort().isEmpty() && !plan.ordered();
+        ScanPool pool = getScanPool();
+        if (pool != null && plan.isScan() && (sorting || query.limit() == 0) && pool.isParallel(size(plan))) { // reads every candidate anyway
+            return parallel(query, plan, data, pool, sorting);
+        }
+        if (sorting) return sorted(query, plan, data);
+        List<byte[]> result = new ArrayList<>();
+        stream(query, plan, data).forEachRemaining(result::add);
+        return result;
+    }
+
+    // reads candidates only as far as the caller iterates, except for a sort in memory which needs every match first
+    public static Iterator<byte[]> stream(Query query, QueryPlan plan, CollectionDataImpl data) {
+        if (!query.sort().isEmpty() && !plan.ordered()) return sorted(query, plan, data).iterator();
+        return stream(query, plan, data, (entry, document) -> query.projection() == null ? entry : project(document, query.projection()));
+    }
+
+    // the matching documents as parsed, in candidate order
+    public static Iterator<Map<String, Object>> documents(Filter filter, QueryPlan plan, CollectionDataImpl data) {
+        return stream(Query.of(filter), plan, data, (entry, document) -> document);
+    }
+
+    private static <T> Iterator<T> stream(Query query, QueryPlan plan, CollectionDataImpl data, BiFunction<byte[], Map<String, Object>, T> output) {
+        Iterator<ObjectId> ids = plan.candidates().open(window(query));
+        return new Iterator<>() {
+            private int skipped;
+            private int returned;
+            private T next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if ((query.limit() > 0 && returned >= query.limit()) || !ids.hasNext()) return false;
+                    ObjectId id = ids.next();
+                    byte[] entry = data.get(id);
+                    if (entry == null) continue; // deleted since the plan was made
+                    Map<String, Object> document = data.decode(id, entry).getData();
+                    if (!FilterMatcher.matches(document, query.filter())) continue; // index entries may lag behind a concurrent write
+                    if (skipped < query.skip()) {
+                        skipped++;
+                        continue;
+                    }
+                    next = output.apply(entry, document);
+                }
+                return true;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                T current = next;
+                next = null;
+                returned++;
+                return current;
+            }
+        };
+    }
+
+    // keeps the best skip + limit matches in a bounded heap, every match without a limit
+    private static List<byte[]> sorted(Query query, QueryPlan plan, CollectionDataImpl data) {
+        int window = window(query);
+        Comparator<Match> order = order(query.sort());
+        PriorityQueue<Match> top = new PriorityQueue<>(order.reversed()); // the worst kept match on top
+        List<Match> matches = new ArrayList<>();
+        Iterator<ObjectId> ids = plan.candidates().open(0);
+        long sequence = 0;
+        while (ids.hasNext()) {
+            ObjectId id = ids.next();
+            byte[] entry = data.get(id);
+            if (entry == null) continue;
+            Map<String, Object> document = data.decode(id, entry).getData();
+            if (!FilterMatcher.matches(document, query.filter())) continue;
+            Match match = new Match(id, entry, keys(document, query.sort()), sequence++);
+            if (window > 0) {
+                top.add(match);
+                if (top.size() > window) top.poll();
+            } else {
+                matches.add(match);
+            }
+        }
+        matches.addAll(top);
+        matches.sort(order);
+        List<byte[]> result = new ArrayList<>();
+        for (int i = query.skip(); i < matches.size(); i++) {
+            Match match = matches.get(i);
+            result.add(query.projection() == null ? match.entry() : project(data.decode(match.id(), match.entry()).getData(), query.projection()));
+        }
+        return result;
+    }
+
+    // matches on the scan pool, merged in candidate order so the result is the one of a sequential scan
+    private static List<byte[]> parallel(Query query, QueryPlan plan, CollectionDataImpl data, ScanPool pool, boolean sorting) {
+        List<Match> matches = pool.map(candidates(plan), id -> {
+            byte[] entry = data.get(id);
+            if (entry == null) return null;
+            Map<String, Object> document = data.decode(id, entry).getData();
+            if (!FilterMatcher.matches(document, query.filter())) return null;
+            if (sorting) return new Match(id, entry, keys(document, query.sort()), 0);
+            return new Match(id, query.projection() == null ? entry : project(document, query.projection()), null, 0);
+        });
+        if (sorting) matches.sort(order(query.sort())); // a stable sort, equal keys keep the candidate order
+        int end = query.limit() > 0 ? (int) Math.min(matches.size(), (long) query.skip() + query.limit()) : matches.size();
+        List<byte[]> result = new ArrayList<>();
+        for (int i = query.skip(); i < end; i++) {
+            Match match = matches.get(i);
+            result.add(!sorting || query.projection() == null ? match.entry() : project(data.decode(match.id(), match.entry()).getData(), query.projection()));
+        }
+        return result;
+    }
+
+    public static long count(Filter filter, QueryPlan plan, CollectionDataImpl data) {
+        ScanPool pool = getScanPool();
+        if (pool != null && plan.isScan() && pool.isParallel(size(plan))) {
+            return pool.map(candidates(plan), id -> {
+                byte[] entry = data.get(id);
+                return entry != null && FilterMatcher.matches(data.decode(id, entry).getData(), filter) ? Boolean.TRUE : null;
+            }).size();
+        }
+        long count = 0;
+        Iterator<ObjectId> ids = plan.candidates().open(0);
+        while (ids.hasNext()) {
+            ObjectId id = ids.next();
+            byte[] entry = data.get(id);
+            if (entry != null && FilterMatcher.matches(data.decode(id, entry).getData(), filter)) count++;
+        }
+        return count;
+    }
+
+    private static List<ObjectId> candidates(QueryPlan plan) {
+        List<ObjectId> ids = new ArrayList<>(size(plan));
+        plan.candidates().open(0).forEachRemaining(ids::add);
+        return ids;
+    }
+
+    private static int size(QueryPlan plan) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, plan.estimate());
+    }
+
+    private static ScanPool getScanPool() {
+        return Main.core != null ? Main.core.getScanPool() : null;
+    }
+
+    private static int window(Query query) { // 0 keeps every match
+        return query.limit() > 0 ? (int) Math.min(Integer.MAX_VALUE, (long) query.skip() + query.limit()) : 0;
+    }
+
+    static Object[] keys(Map<String, Object> document, List<Query.Sort> sort) {
+        Object[] keys = new Object[sort.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = FilterMatcher.resolve(document, sort.get(i).field());
+        }
+        return keys;
+    }
+
+    // ties keep the candidate order
+    private static Comparator<Match> order(List<Query.Sort> sort) {
+        Comparator<Object[]> keys = keyOrder(sort);
+        return (a, b) -> {
+            int result = keys.compare(a.keys(), b.keys());
+            return result != 0 ? result : Long.compare(a.sequence(), b.sequence());
+        };
+    }
+
+    // compares the values of the sort keys, unordered and missing values last in either direction
+    static Comparator<Object[]> keyOrder(List<Query.Sort> sort) {
+        return (a, b) -> {
+            for (int i = 0; i < sort.size(); i++) {
+                boolean orderedX = ValueOrder.isOrdered(a[i]);
+                boolean orderedY = ValueOrder.isOrdered(b[i]);
+                int result = orderedX && orderedY ? ValueOrder.compare(a[i], b[i]) * (sort.get(i).descending() ? -1 : 1) : Boolean.compare(!orderedX, !orderedY);
+                if (result != 0) return result;
+            }
+            return 0;
+        };
+    }
+
+    // the id and the projected fields, a nested path is kept nested, compressed like a stored document
+    private static byte[] project(Map<String, Object> document, List<String> fields) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("$id", document.get("$id"));
+        return CompressUtil.compress(new JsonBase(select(document, fields, values)).asJsonText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // adds the fields of the document to values
+    static Map<String, Object> select(Map<String, Object> document, List<String> fields, Map<String, Object> values) {
+        Set<Object> built = Collections.newSetFromMap(new IdentityHashMap<>()); // the nested objects made here, the others belong to the document
+        for (String field : fields) {
+            Object value = FilterMatcher.resolve(document, field);
+            if (value == FilterMatcher.MISSING) continue;
+            if (FilterMatcher.isTopLevel(field) || document.containsKey(field)) {
+                values.put(field, value);
+                continue;
+            }
+            String[] parts = field.split("\\.");
+            Map<String, Object> target = values;
+            for (int i = 0; i < parts.length - 1 && target != null; i++) {
+                Object child = target.get(parts[i]);
+                if (child == null) {
+                    child = new LinkedHashMap<String, Object>();
+                    built.add(child);
+                    target.put(parts[i], child);
+                }
+                target = built.contains(child) ? cast(child) : null; // a parent projected as a whole already holds the path
+            }
+            if (target != null) target.put(parts[parts.length - 1], value);
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> cast(Object map) {
+        return (Map<String, Object>) map;
+    }
+}
@@ -0,0 +1,87 @@
+package net.weesli.core.query;
+
+import lombok.Getter;
+import net.weesli.core.model.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the decode and match work of unindexed scans on a fork join pool shared by every query. The candidates are split
+ * into ranges that at most parallelism workers take one after the other, the calling thread being one of them, so a
+ * query can not take the whole pool and still finishes when the pool is busy. Results are merged in range order,
+ * which is the order a sequential scan yields.
+ */
+@Getter
+public class ScanPool {
+
+    private static final int RANGES_PER_WORKER = 4; // smaller ranges even out documents that are slower to decode
+
+    private final ForkJoinPool pool;
+    private final int parallelism; // workers per query, the caller included
+    private final int minDocuments; // smaller scans stay on the calling thread
+
+    public ScanPool(int threads, int parallelism, int minDocuments) {
+        this.pool = new ForkJoinPool(Math.max(1, threads), pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("RozsDB-Scan-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        this.parallelism = Math.max(1, Math.min(parallelism, threads + 1));
+        this.minDocuments = Math.max(1, minDocuments);
+    }
+
+    public static ScanPool fromSettings(Settings settings) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long threads = settings != null ? settings.getLong("query", "scanThreads", 0) : 0;
+        long parallelism = settings != null ? settings.getLong("query", "scanParallelism", 0) : 0;
+        long minDocuments = settings != null ? settings.getLong("query", "parallelScanMinDocs", 10_000) : 10_000;
+        int poolSize = threads > 0 ? (int) threads : Math.max(1, cores - 1); // 0 leaves a core to the calling threads
+        return new ScanPool(poolSize, parallelism > 0 ? (int) parallelism : poolSize + 1, (int) minDocuments);
+    }
+
+    public boolean isParallel(int size) {
+        return parallelism > 1 && size >= minDocuments;
+    }
+
+    // the mapped items in input order, items mapped to null are dropped
+    public <T, R> List<R> map(List<T> items, Function<T, R> mapper) {
+        if (!isParallel(items.size())) return mapRange(items, 0, items.size(), mapper);
+        int ranges = Math.min(items.size(), parallelism * RANGES_PER_WORKER);
+        List<List<R>> results = new ArrayList<>(ranges);
+        for (int i = 0; i < ranges; i++) results.add(null);
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int range = next.getAndIncrement(); range < ranges; range = next.getAndIncrement()) {
+                int from = (int) ((long) items.size() * range / ranges);
+                int to = (int) ((long) items.size() * (range + 1) / ranges);
+                results.set(range, mapRange(items, from, to, mapper));
+            }
+        };
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 1; i < parallelism; i++) tasks.add(pool.submit(worker));
+        worker.run();
+        for (ForkJoinTask<?> task : tasks) task.join(); // rethrows what a worker threw
+        List<R> merged = new ArrayList<>();
+        for (List<R> range : results) merged.addAll(range);
+        return merged;
+    }
+
+    private static <T, R> List<R> mapRange(List<T> items, int from, int to, Function<T, R> mapper) {
+        List<R> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            R value = mapper.apply(items.get(i));
+            if (value != null) result.add(value);
+        }
+        return result;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
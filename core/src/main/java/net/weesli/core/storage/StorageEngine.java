@@ -0,0 +1,27 @@
+package net.weesli.core.storage;
+
+import net.weesli.api.model.ObjectId;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+public interface StorageEngine {
+
+    void write(ObjectId id, byte[] data);
+    byte[] read(ObjectId id);
+    boolean delete(ObjectId id);
+    boolean contains(ObjectId id);
+
+    Set<ObjectId> keys();
+    Map<ObjectId, byte[]> readAll();
+
+    void sync();
+    void close();
+
+    default void writeIfChanged(ObjectId id, byte[] data) {
+        if (!Arrays.equals(read(id), data)) {
+            write(id, data);
+        }
+    }
+}
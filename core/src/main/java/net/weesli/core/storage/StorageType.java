@@ -0,0 +1,44 @@
+package net.weesli.core.storage;
+
+import net.weesli.core.Main;
+import net.weesli.core.model.Settings;
+import net.weesli.core.storage.types.FileStorageEngine;
+import net.weesli.core.storage.types.SegmentStorageEngine;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.File;
+
+public enum StorageType {
+    FILE, // legacy layout, one file per document
+    SEGMENT; // append-only rolling segment files
+
+    public StorageEngine open(File directory) {
+        return switch (this) {
+            case FILE -> new FileStorageEngine(directory);
+            case SEGMENT -> new SegmentStorageEngine(directory, getSegmentSize());
+        };
+    }
+
+    public static StorageType fromSettings() {
+        String engine = getSettings() != null ? getSettings().getString("storage", "engine", "file") : "file";
+        try {
+            return StorageType.valueOf(engine.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Unknown storage engine '" + engine + "', falling back to file storage");
+            return FILE;
+        }
+    }
+
+    public static boolean isLazyOpen() { // only the key directory is built on open, documents are read on demand
+        return getSettings() == null || getSettings().getBoolean("storage", "lazyOpen", true);
+    }
+
+    private static long getSegmentSize() {
+        long sizeMB = getSettings() != null ? getSettings().getLong("storage", "segmentSizeMB", 64) : 64;
+        return Math.max(1, sizeMB) * 1024L * 1024L;
+    }
+
+    private static Settings getSettings() {
+        return Main.core != null ? Main.core.getSettings() : null;
+    }
+}
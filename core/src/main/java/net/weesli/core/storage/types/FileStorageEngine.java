@@ -0,0 +1,80 @@
+package net.weesli.core.storage.types;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.file.DatabaseFileManager;
+import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.storage.StorageEngine;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class FileStorageEngine implements StorageEngine {
+
+    private final File directory;
+    private final DatabaseFileManager fileManager;
+
+    public FileStorageEngine(File directory) {
+        this.directory = directory;
+        this.fileManager = new DatabaseFileManager();
+    }
+
+    @Override
+    public void write(ObjectId id, byte[] data) {
+        DatabaseFileManager.write(data, getFile(id));
+    }
+
+    @Override
+    public byte[] read(ObjectId id) {
+        File file = getFile(id);
+        if (!file.isFile()) return null;
+        return DatabaseFileManager.read(file);
+    }
+
+    @Override
+    public boolean delete(ObjectId id) {
+        return fileManager.deleteFile(getFile(id));
+    }
+
+    @Override
+    public boolean contains(ObjectId id) {
+        return getFile(id).isFile();
+    }
+
+    @Override
+    public Set<ObjectId> keys() {
+        Set<ObjectId> keys = new HashSet<>();
+        File[] files = directory.listFiles();
+        if (files == null) return keys;
+        for (File file : files) {
+            if (DatabaseFileManager.isDataFile(file)) {
+                keys.add(ObjectIdImpl.valueOf(file.getName()));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public Map<ObjectId, byte[]> readAll() {
+        Map<ObjectId, byte[]> result = new HashMap<>();
+        fileManager.readAllFilesInDirectory(directory, 1000)
+                .forEach((key, value) -> result.put(ObjectIdImpl.valueOf(key), value));
+        return result;
+    }
+
+    @Override
+    public void sync() {
+        // every write is already forced to disk
+    }
+
+    @Override
+    public void close() {
+        fileManager.shutdown();
+    }
+
+    private File getFile(ObjectId id) {
+        return new File(directory, id.getObjectId());
+    }
+}
@@ -0,0 +1,518 @@
+package net.weesli.core.storage.types;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.Main;
+import net.weesli.core.file.DatabaseFileManager;
+import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.storage.StorageEngine;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores documents as records appended to rolling segment files instead of one file per document.
+ * Record layout: crc(4) type(1) idLength(2) payloadLength(4) id payload, the crc covers everything after itself.
+ * An in-memory key directory maps every live id to the record holding its latest value.
+ * Each segment gets a hint file listing its record headers, so opening a collection rebuilds the
+ * key directory from the hints and only scans the part of a segment written after its hint.
+ * Sealed segments that are mostly garbage are compacted on the shared IOScheduler, the writer lock is only held
+ * while a live record is moved, so appends are never stuck behind a compaction.
+ */
+public class SegmentStorageEngine implements StorageEngine {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_EXTENSION = ".rseg";
+    private static final String HINT_EXTENSION = ".rhint";
+    private static final int HINT_MAGIC = 0x52484E54; // RHNT
+    private static final byte HINT_VERSION = 1;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 4;
+    private static final int READ_ATTEMPTS = 3;
+
+    private final File directory;
+    private final long maxSegmentSize;
+
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<ObjectId, Location> keyDirectory = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private volatile Segment active;
+    private volatile boolean closed;
+    private boolean compactionDue; // guarded by writeLock, set by a roll
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    public SegmentStorageEngine(File directory, long maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        open();
+        migrateLegacyFiles();
+    }
+
+    @Override
+    public void write(ObjectId id, byte[] data) {
+        synchronized (writeLock) {
+            append(TYPE_PUT, id, data);
+        }
+        scheduleCompaction();
+    }
+
+    @Override
+    public byte[] read(ObjectId id) {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            Location location = keyDirectory.get(id);
+            if (location == null) return null;
+            Segment segment = segments.get(location.segment());
+            if (segment == null) continue; // moved by a compaction, look the id up again
+            try {
+                return readPayload(segment, location);
+            } catch (ClosedChannelException e) {
+                // segment was compacted while reading, retry with the new location
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read record " + id + " from " + segment.file.getName(), e);
+            }
+        }
+        throw new RuntimeException("Failed to read record " + id + ": location kept moving");
+    }
+
+    @Override
+    public boolean delete(ObjectId id) {
+        synchronized (writeLock) {
+            if (!keyDirectory.containsKey(id)) return false;
+            append(TYPE_DELETE, id, null);
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    @Override
+    public boolean contains(ObjectId id) {
+        return keyDirectory.containsKey(id);
+    }
+
+    @Override
+    public Set<ObjectId> keys() {
+        return Collections.unmodifiableSet(keyDirectory.keySet());
+    }
+
+    @Override
+    public Map<ObjectId, byte[]> readAll() {
+        Map<ObjectId, byte[]> result = new HashMap<>();
+        for (ObjectId id : keyDirectory.keySet()) {
+            byte[] value = read(id);
+            if (value != null) result.put(id, value);
+        }
+        return result;
+    }
+
+    @Override
+    public void sync() {
+        Segment segment = active;
+        try {
+            segment.channel.force(false);
+        } catch (ClosedChannelException ignored) {
+            // rolled over, a sealed segment is forced before it is replaced
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to sync segment " + segment.file.getName(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            closed = true; // a running compaction stops before its next record
+            for (Segment segment : segments.values()) {
+                try {
+                    if (segment == active) {
+                        segment.channel.force(false);
+                        writeHint(segment); // a clean shutdown reopens without scanning the active segment
+                    }
+                    segment.channel.close();
+                } catch (IOException e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to close segment " + segment.file.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void open() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION));
+        List<Integer> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String number = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_EXTENSION.length());
+                try {
+                    ids.add(Integer.parseInt(number));
+                } catch (NumberFormatException e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Ignoring unknown segment file: " + file.getAbsolutePath());
+                }
+            }
+        }
+        Collections.sort(ids);
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                Segment segment = openSegment(ids.get(i));
+                segments.put(segment.id, segment);
+                boolean last = i == ids.size() - 1;
+                long hinted = loadHint(segment);
+                scan(segment, Math.max(hinted, 0), last);
+                if (hinted < 0 && !last) writeHint(segment); // sealed segment written before hints existed
+            }
+            active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open segments in " + directory.getAbsolutePath(), e);
+        }
+    }
+
+    // rebuild the key directory from one segment, a torn record at the tail of the newest segment is cut off
+    private void scan(Segment segment, long start, boolean last) throws IOException {
+        long fileSize = segment.channel.size();
+        long position = start;
+        if (position >= fileSize) {
+            segment.size = position;
+            return;
+        }
+        try (FileInputStream file = new FileInputStream(segment.file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16))) {
+            file.getChannel().position(start);
+            while (position + HEADER_SIZE <= fileSize) {
+                int crc = in.readInt();
+                byte type = in.readByte();
+                int idLength = in.readUnsignedShort();
+                int payloadLength = in.readInt();
+                int size = HEADER_SIZE + idLength + payloadLength;
+                if (payloadLength < 0 || position + size > fileSize) break;
+                byte[] key = in.readNBytes(idLength);
+                byte[] payload = in.readNBytes(payloadLength);
+                if (crc != checksum(type, key, payload)) break;
+                apply(type, ObjectIdImpl.valueOf(new String(key, StandardCharsets.UTF_8)), new Location(segment.id, position, size, crc));
+                position += size;
+            }
+        } catch (EOFException ignored) {
+        }
+        if (position < fileSize) {
+            if (last) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Truncating incomplete tail of " + segment.file.getAbsolutePath() + " at " + position);
+                segment.channel.truncate(position);
+            } else {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Corrupted record in " + segment.file.getAbsolutePath() + " at " + position + ", rest of segment skipped");
+            }
+        }
+        segment.size = position;
+    }
+
+    private void apply(byte type, ObjectId id, Location location) {
+        Location previous = type == TYPE_PUT ? keyDirectory.put(id, location) : keyDirectory.remove(id);
+        if (previous != null) {
+            Segment segment = segments.get(previous.segment());
+            if (segment != null) segment.deadBytes += previous.size();
+        }
+    }
+
+    // callers hold writeLock
+    private void append(byte type, ObjectId id, byte[] payload) {
+        byte[] key = id.getObjectId().getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xFFFF) throw new IllegalArgumentException("ObjectId is too long: " + id);
+        if (payload == null) payload = new byte[0];
+        int crc = checksum(type, key, payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + payload.length);
+        record.putInt(crc).put(type).putShort((short) key.length).putInt(payload.length).put(key).put(payload);
+        record.flip();
+        try {
+            if (active.size > 0 && active.size + record.remaining() > maxSegmentSize) {
+                roll();
+            }
+            Segment segment = active;
+            long offset = segment.size;
+            long position = offset;
+            while (record.hasRemaining()) {
+                position += segment.channel.write(record, position);
+            }
+            segment.size = position;
+            apply(type, id, new Location(segment.id, offset, (int) (position - offset), crc));
+        } catch (IOException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to append record " + id + " in " + directory.getName() + " - " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void roll() throws IOException {
+        Segment sealed = active;
+        sealed.channel.force(false);
+        writeHint(sealed);
+        active = createSegment(sealed.id + 1);
+        compactionDue = true;
+    }
+
+    // called after the writer lock is released, so a scheduler that runs the task inline does not hold up other appends
+    private void scheduleCompaction() {
+        if (closed || !compacting.compareAndSet(false, true)) return; // a roll during a compaction is picked up by the next write
+        synchronized (writeLock) {
+            if (!compactionDue) {
+                compacting.set(false);
+                return;
+            }
+            compactionDue = false;
+        }
+        Runnable task = () -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                if (!closed) DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to compact segments in " + directory.getName() + ": " + e.getMessage());
+            } finally {
+                compacting.set(false);
+            }
+        };
+        if (Main.core != null) Main.core.getIoScheduler().run(task);
+        else task.run();
+    }
+
+    // rewrite sealed segments that are mostly garbage, live records are appended to the active segment
+    private void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.deadBytes * 2 >= segment.size) candidates.add(segment);
+            }
+        }
+        for (Segment segment : candidates) {
+            int moved = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16))) {
+                long position = 0;
+                while (position < segment.size) {
+                    in.readInt();
+                    byte type = in.readByte();
+                    int idLength = in.readUnsignedShort();
+                    int payloadLength = in.readInt();
+                    byte[] key = in.readNBytes(idLength);
+                    byte[] payload = in.readNBytes(payloadLength);
+                    ObjectId id = ObjectIdImpl.valueOf(new String(key, StandardCharsets.UTF_8));
+                    synchronized (writeLock) { // the location is checked again under the lock, a newer write wins
+                        if (closed) return;
+                        Location location = keyDirectory.get(id);
+                        if (type == TYPE_PUT && location != null && location.segment() == segment.id && location.offset() == position) {
+                            append(TYPE_PUT, id, payload);
+                            moved++;
+                        } else if (type == TYPE_DELETE && segments.firstKey() != segment.id && location == null) {
+                            append(TYPE_DELETE, id, null); // older segments may still hold the deleted value
+                        }
+                    }
+                    position += HEADER_SIZE + idLength + payloadLength;
+                }
+            }
+            synchronized (writeLock) {
+                if (closed) return;
+                active.channel.force(false);
+                segments.remove(segment.id);
+                segment.channel.close();
+            }
+            Files.deleteIfExists(segment.file.toPath());
+            Files.deleteIfExists(hintFile(segment).toPath());
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Compacted " + segment.file.getName() + " in " + directory.getName() + ", " + moved + " live records moved");
+        }
+    }
+
+    // hint layout: magic(4) version(1) segmentLength(8) count(4), then per record type(1) idLength(2) id offset(8) size(4) crc(4),
+    // closed by a crc of everything before it. Returns the segment length the hint covers, -1 when there is no usable hint.
+    private long loadHint(Segment segment) {
+        File file = hintFile(segment);
+        if (!file.isFile()) return -1;
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            if (data.length < 21) throw new IOException("hint file is too short");
+            CRC32C checksum = new CRC32C();
+            checksum.update(data, 0, data.length - 4);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt(data.length - 4) != (int) checksum.getValue()) throw new IOException("checksum mismatch");
+            if (buffer.getInt() != HINT_MAGIC || buffer.get() != HINT_VERSION) throw new IOException("unknown hint format");
+            long length = buffer.getLong();
+            if (length > segment.channel.size()) throw new IOException("segment is shorter than its hint");
+            int count = buffer.getInt();
+            byte[] types = new byte[count];
+            ObjectId[] ids = new ObjectId[count];
+            Location[] locations = new Location[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = buffer.get();
+                byte[] key = new byte[Short.toUnsignedInt(buffer.getShort())];
+                buffer.get(key);
+                ids[i] = ObjectIdImpl.valueOf(new String(key, StandardCharsets.UTF_8));
+                locations[i] = new Location(segment.id, buffer.getLong(), buffer.getInt(), buffer.getInt());
+            }
+            for (int i = 0; i < count; i++) { // applied only once the whole hint is known to be valid
+                apply(types[i], ids[i], locations[i]);
+            }
+            return length;
+        } catch (IOException | RuntimeException e) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Ignoring hint " + file.getAbsolutePath() + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private void writeHint(Segment segment) {
+        File file = hintFile(segment);
+        File temp = new File(directory, file.getName() + ".tmp");
+        long length = segment.size;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16))) {
+            ByteArrayHint hint = new ByteArrayHint();
+            long position = 0;
+            while (position < length) {
+                int crc = in.readInt();
+                byte type = in.readByte();
+                int idLength = in.readUnsignedShort();
+                int payloadLength = in.readInt();
+                byte[] key = in.readNBytes(idLength);
+                in.skipNBytes(payloadLength);
+                int size = HEADER_SIZE + idLength + payloadLength;
+                hint.add(type, key, position, size, crc);
+                position += size;
+            }
+            CRC32C checksum = new CRC32C();
+            try (CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16), checksum);
+                 DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(HINT_MAGIC);
+                out.writeByte(HINT_VERSION);
+                out.writeLong(length);
+                out.writeInt(hint.count);
+                hint.records.writeTo(out);
+                out.flush();
+                out.writeInt((int) checksum.getValue());
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // without a hint the segment is scanned on the next open
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Failed to write hint for " + segment.file.getName() + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp.toPath());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private File hintFile(Segment segment) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%06d", segment.id) + HINT_EXTENSION);
+    }
+
+    private byte[] readPayload(Segment segment, Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.size());
+        long position = location.offset();
+        while (buffer.hasRemaining()) {
+            int read = segment.channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of " + segment.file.getName());
+            position += read;
+        }
+        buffer.flip();
+        int crc = buffer.getInt();
+        byte type = buffer.get();
+        int idLength = Short.toUnsignedInt(buffer.getShort());
+        int payloadLength = buffer.getInt();
+        byte[] data = buffer.array();
+        CRC32C checksum = new CRC32C();
+        checksum.update(data, 4, data.length - 4);
+        if (crc != location.crc() || crc != (int) checksum.getValue() || type != TYPE_PUT) {
+            throw new IOException("Checksum mismatch at " + location.offset());
+        }
+        int start = HEADER_SIZE + idLength;
+        return Arrays.copyOfRange(data, start, start + payloadLength);
+    }
+
+    private void migrateLegacyFiles() {
+        File[] files = directory.listFiles(DatabaseFileManager::isDataFile);
+        if (files == null || files.length == 0) return;
+        int migrated = 0;
+        synchronized (writeLock) {
+            for (File file : files) {
+                ObjectId id = ObjectIdImpl.valueOf(file.getName());
+                if (keyDirectory.containsKey(id)) continue;
+                append(TYPE_PUT, id, DatabaseFileManager.read(file));
+                migrated++;
+            }
+        }
+        sync();
+        for (File file : files) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, file.toPath() + " not deleted after migration: " + e.getMessage());
+            }
+        }
+        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Migrated " + migrated + " documents in " + directory.getAbsolutePath() + " to segment storage");
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = openSegment(id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(directory, SEGMENT_PREFIX + String.format("%06d", id) + SEGMENT_EXTENSION);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel);
+        segment.size = channel.size();
+        return segment;
+    }
+
+    private static int checksum(byte type, byte[] key, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+        header.put(type).putShort((short) key.length).putInt(payload.length);
+        crc.update(header.array());
+        crc.update(key);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private record Location(int segment, long offset, int size, int crc) {
+    }
+
+    private static final class ByteArrayHint {
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(records);
+        private int count;
+
+        private void add(byte type, byte[] key, long offset, int size, int crc) throws IOException {
+            out.writeByte(type);
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeLong(offset);
+            out.writeInt(size);
+            out.writeInt(crc);
+            count++;
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long deadBytes;
+
+        private Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
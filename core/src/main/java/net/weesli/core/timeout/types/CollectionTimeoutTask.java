@@ -15,10 +15,7 @@ public class CollectionTimeoutTask extends TimeoutTask {
 
     @Override
     public void execute() {
-        // save cache to disk and clear cache's
-        collection.save();
-        collection.getCollectionData().getDataStore().clear();
-        collection.getDatabase().unregisterCollection(collection.getCollectionName());
-        cancel();
+        // save cache to disk, clear cache's and unregister the collection
+        collection.close();
     }
 }
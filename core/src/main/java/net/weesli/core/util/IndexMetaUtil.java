@@ -10,25 +10,9 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 public class IndexMetaUtil {
 
-    public static boolean insertDefaultMeta(File file){
-        if (!file.exists()) {
-            JsonBase meta = getBaseMeta();
-            writeMeta(file, meta);
-        }
-        return true;
-    }
-
-    private static JsonBase getBaseMeta(){
-        JsonBase base = new JsonBase(new HashMap<>());
-        base.put("records", new ArrayList<>());
-        return base;
-    }
-
     public static JsonBase getMeta(File file) {
         try {
             if (!file.exists() || file.length() == 0) {
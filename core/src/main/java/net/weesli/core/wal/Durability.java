@@ -0,0 +1,33 @@
+package net.weesli.core.wal;
+
+import net.weesli.core.Main;
+import net.weesli.services.log.DatabaseLogger;
+
+public enum Durability {
+    NONE, // writes reach the os page cache, fsync only on checkpoint
+    INTERVAL, // a background flush every flushIntervalMs, writers never wait
+    COMMIT; // writers wait for their record to be fsynced, concurrent writers share one fsync
+
+    public static Durability fromSettings() {
+        String value = Main.core != null ? Main.core.getSettings().getString("wal", "durability", "every-commit") : "every-commit";
+        return switch (value.toLowerCase()) {
+            case "none" -> NONE;
+            case "interval", "interval-ms" -> INTERVAL;
+            case "every-commit", "commit" -> COMMIT;
+            default -> {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Unknown wal durability '" + value + "', using every-commit");
+                yield COMMIT;
+            }
+        };
+    }
+
+    public static long fileSizeFromSettings() {
+        long sizeMB = Main.core != null ? Main.core.getSettings().getLong("wal", "fileSizeMB", 16) : 16;
+        return Math.max(1, sizeMB) * 1024L * 1024L;
+    }
+
+    public static long flushIntervalFromSettings() {
+        long interval = Main.core != null ? Main.core.getSettings().getLong("wal", "flushIntervalMs", 100) : 100;
+        return Math.max(1, interval);
+    }
+}
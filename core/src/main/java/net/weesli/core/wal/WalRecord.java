@@ -0,0 +1,10 @@
+package net.weesli.core.wal;
+
+import net.weesli.api.model.ObjectId;
+
+public record WalRecord(long seq, String collection, ObjectId id, byte[] data) { // data is null for a delete
+
+    public boolean isDelete() {
+        return data == null;
+    }
+}
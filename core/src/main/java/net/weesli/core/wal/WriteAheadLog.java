@@ -0,0 +1,344 @@
+package net.weesli.core.wal;
+
+import net.weesli.api.model.ObjectId;
+import net.weesli.core.model.ObjectIdImpl;
+import net.weesli.core.storage.StorageEngine;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Per-database write-ahead log. Every acknowledged write is appended here before it is queued for the storage engine.
+ * Each record gets a sequence number that stays outstanding until the storage engine has durably written it,
+ * log files that only hold released records are deleted on checkpoint.
+ * Record layout: crc(4) type(1) collectionLength(2) idLength(2) payloadLength(4) collection id payload.
+ */
+public class WriteAheadLog {
+
+    private static final String FILE_PREFIX = "wal-";
+    private static final String FILE_EXTENSION = ".rwal";
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 2 + 4;
+
+    private final File directory;
+    private final Durability durability;
+    private final long maxFileSize;
+    private ScheduledExecutorService flusher;
+
+    // records found at open time that have not been replayed into their collection yet
+    private final ConcurrentHashMap<String, Map<ObjectId, WalRecord>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<>();
+
+    private final Object appendLock = new Object();
+    private final Deque<LogFile> files = new ArrayDeque<>();
+    private volatile LogFile active;
+    private volatile long appendedSeq;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long syncedSeq;
+    private boolean syncing;
+
+    public WriteAheadLog(File directory, Durability durability, long flushIntervalMs, long maxFileSize) {
+        this.directory = directory;
+        this.durability = durability;
+        this.maxFileSize = maxFileSize;
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open write-ahead log in " + directory.getAbsolutePath(), e);
+        }
+        if (durability == Durability.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "RozsDB-WAL-Flusher-" + directory.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleAtFixedRate(() -> {
+                try {
+                    sync(appendedSeq);
+                } catch (Exception e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "WAL flush failed: " + e.getMessage());
+                }
+            }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static boolean isLogFile(String name) {
+        return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_EXTENSION);
+    }
+
+    // returns the sequence number of the record, it stays outstanding until release is called with it
+    public long append(String collection, ObjectId id, byte[] data) {
+        ByteBuffer record = encode(data == null ? TYPE_DELETE : TYPE_PUT, collection, id, data);
+        long seq;
+        synchronized (appendLock) {
+            try {
+                if (active.size > 0 && active.size + record.remaining() > maxFileSize) {
+                    rotate();
+                }
+                long position = active.size;
+                while (record.hasRemaining()) {
+                    position += active.channel.write(record, position);
+                }
+                active.size = position;
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to append to write-ahead log: " + e.getMessage());
+                throw new RuntimeException(e);
+            }
+            seq = ++appendedSeq;
+            active.lastSeq = seq;
+            outstanding.add(seq);
+        }
+        if (durability == Durability.COMMIT) {
+            sync(seq);
+        }
+        return seq;
+    }
+
+    // group commit: whoever finds no fsync running becomes the leader and syncs everything appended so far
+    private void sync(long seq) {
+        syncLock.lock();
+        try {
+            while (syncedSeq < seq) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = appendedSeq;
+                LogFile file = active;
+                boolean success = false;
+                syncLock.unlock();
+                try {
+                    file.channel.force(false);
+                    success = true;
+                } catch (ClosedChannelException e) {
+                    success = true; // rotated files are forced before the next one becomes active
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to sync write-ahead log in " + directory.getAbsolutePath(), e);
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    if (success && target > syncedSeq) syncedSeq = target;
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public void release(long seq) { // the record is durable in the storage engine or superseded by a newer one
+        outstanding.remove(seq);
+    }
+
+    public List<WalRecord> replay(String collection, StorageEngine storage) {
+        Map<ObjectId, WalRecord> records = pending.remove(collection);
+        if (records == null || records.isEmpty()) return List.of();
+        for (WalRecord record : records.values()) {
+            if (record.isDelete()) {
+                storage.delete(record.id());
+            } else {
+                storage.write(record.id(), record.data());
+            }
+        }
+        storage.sync();
+        records.values().forEach(record -> release(record.seq()));
+        DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Replayed " + records.size() + " write-ahead log records into " + collection);
+        return new ArrayList<>(records.values());
+    }
+
+    public void retainCollections(java.util.Collection<String> collections) {
+        pending.entrySet().removeIf(entry -> {
+            if (collections.contains(entry.getKey())) return false;
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Dropping write-ahead log records of missing collection: " + entry.getKey());
+            entry.getValue().values().forEach(record -> release(record.seq()));
+            return true;
+        });
+    }
+
+    // delete log files whose records are all released, truncate the active one when nothing is outstanding
+    public void checkpoint() {
+        synchronized (appendLock) {
+            long oldestOutstanding = outstanding.isEmpty() ? Long.MAX_VALUE : outstanding.first();
+            try {
+                while (files.size() > 1 && files.peekFirst().lastSeq < oldestOutstanding) {
+                    LogFile file = files.pollFirst();
+                    file.channel.close();
+                    Files.deleteIfExists(file.file.toPath());
+                }
+                if (oldestOutstanding == Long.MAX_VALUE && active.size > 0 && files.size() == 1) {
+                    active.channel.truncate(0);
+                    active.channel.force(true);
+                    active.size = 0;
+                }
+            } catch (IOException e) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to checkpoint write-ahead log: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        if (flusher != null) flusher.shutdown();
+        sync(appendedSeq);
+        checkpoint();
+        synchronized (appendLock) {
+            for (LogFile file : files) {
+                try {
+                    file.channel.close();
+                } catch (IOException e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Failed to close write-ahead log: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // callers hold appendLock
+    private void rotate() throws IOException {
+        LogFile sealed = active;
+        sealed.channel.force(false);
+        active = openFile(sealed.index + 1);
+        active.lastSeq = sealed.lastSeq;
+        files.addLast(active);
+    }
+
+    private void recover() throws IOException {
+        File[] found = directory.listFiles((dir, name) -> isLogFile(name));
+        List<Long> indexes = new ArrayList<>();
+        if (found != null) {
+            for (File file : found) {
+                String number = file.getName().substring(FILE_PREFIX.length(), file.getName().length() - FILE_EXTENSION.length());
+                try {
+                    indexes.add(Long.parseLong(number));
+                } catch (NumberFormatException e) {
+                    DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Ignoring unknown write-ahead log file: " + file.getAbsolutePath());
+                }
+            }
+        }
+        Collections.sort(indexes);
+        int count = 0;
+        for (int i = 0; i < indexes.size(); i++) {
+            LogFile file = openFile(indexes.get(i));
+            count += recover(file, i == indexes.size() - 1);
+            file.lastSeq = appendedSeq;
+            files.addLast(file);
+        }
+        if (files.isEmpty()) {
+            files.addLast(openFile(1));
+        }
+        active = files.peekLast();
+        // only the latest record of every id has to survive a checkpoint
+        pending.values().forEach(records -> records.values().forEach(record -> outstanding.add(record.seq())));
+        if (count > 0) {
+            DatabaseLogger.logCore(DatabaseLogger.LogLevel.INFO, "Recovered " + count + " write-ahead log records from " + directory.getAbsolutePath());
+        }
+    }
+
+    private int recover(LogFile file, boolean last) throws IOException {
+        long fileSize = file.channel.size();
+        long position = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.file), 1 << 16))) {
+            while (position + HEADER_SIZE <= fileSize) {
+                int crc = in.readInt();
+                byte type = in.readByte();
+                int collectionLength = in.readUnsignedShort();
+                int idLength = in.readUnsignedShort();
+                int payloadLength = in.readInt();
+                int recordSize = HEADER_SIZE + collectionLength + idLength + payloadLength;
+                if (payloadLength < 0 || position + recordSize > fileSize) break;
+                byte[] collection = in.readNBytes(collectionLength);
+                byte[] id = in.readNBytes(idLength);
+                byte[] payload = in.readNBytes(payloadLength);
+                if (crc != checksum(type, collection, id, payload)) break;
+                String collectionName = new String(collection, StandardCharsets.UTF_8);
+                ObjectId objectId = ObjectIdImpl.valueOf(new String(id, StandardCharsets.UTF_8));
+                WalRecord record = new WalRecord(++appendedSeq, collectionName, objectId, type == TYPE_PUT ? payload : null);
+                pending.computeIfAbsent(collectionName, k -> new LinkedHashMap<>()).put(objectId, record);
+                position += recordSize;
+                count++;
+            }
+        } catch (EOFException ignored) {
+        }
+        if (position < fileSize) {
+            if (last) {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.WARN, "Truncating incomplete tail of write-ahead log " + file.file.getAbsolutePath() + " at " + position);
+                file.channel.truncate(position);
+            } else {
+                DatabaseLogger.logCore(DatabaseLogger.LogLevel.ERROR, "Corrupted record in write-ahead log " + file.file.getAbsolutePath() + " at " + position + ", rest of file skipped");
+            }
+        }
+        file.size = position;
+        return count;
+    }
+
+    private LogFile openFile(long index) throws IOException {
+        File file = new File(directory, FILE_PREFIX + String.format("%08d", index) + FILE_EXTENSION);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogFile logFile = new LogFile(index, file, channel);
+        logFile.size = channel.size();
+        return logFile;
+    }
+
+    private static ByteBuffer encode(byte type, String collection, ObjectId id, byte[] data) {
+        byte[] collectionBytes = collection.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = id.getObjectId().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = data == null ? new byte[0] : data;
+        if (collectionBytes.length > 0xFFFF || idBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Collection name or ObjectId is too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + collectionBytes.length + idBytes.length + payload.length);
+        buffer.putInt(checksum(type, collectionBytes, idBytes, payload))
+                .put(type)
+                .putShort((short) collectionBytes.length)
+                .putShort((short) idBytes.length)
+                .putInt(payload.length)
+                .put(collectionBytes)
+                .put(idBytes)
+                .put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int checksum(byte type, byte[] collection, byte[] id, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE - 4);
+        header.put(type).putShort((short) collection.length).putShort((short) id.length).putInt(payload.length);
+        crc.update(header.array());
+        crc.update(collection);
+        crc.update(id);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static final class LogFile {
+        private final long index;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long lastSeq;
+
+        private LogFile(long index, File file, FileChannel channel) {
+            this.index = index;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
@@ -39,6 +39,7 @@ public class ClientHandler implements Runnable {
     }
 
     public void stop() {
+        reader.close();
         try {
             if (!socket.isClosed()) {
                 socket.close();
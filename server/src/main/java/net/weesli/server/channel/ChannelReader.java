@@ -2,6 +2,10 @@ package net.weesli.server.channel;
 
 import net.weesli.api.database.Collection;
 import net.weesli.api.database.Database;
+import net.weesli.api.model.Filter;
+import net.weesli.api.model.Pipeline;
+import net.weesli.api.model.Query;
+import net.weesli.api.model.Range;
 import net.weesli.server.Server;
 import net.weesli.server.exception.AuthException;
 import net.weesli.server.model.SocketResponse;
@@ -11,7 +15,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ChannelReader {
     private final Socket socket;
@@ -32,6 +38,23 @@ public class ChannelReader {
                 case "delete" -> response = handleDelete(node);
                 case "findbyid" -> response = handleFindById(node);
                 case "close" -> response = handleClose(node);
+                case "findrange" -> response = handleFindRange(node);
+                case "search" -> response = handleSearch(node);
+                case "findwhere" -> response = handleFindWhere(node);
+                case "findfilter" -> response = handleFindFilter(node);
+                case "count" -> response = handleCount(node);
+                case "exists" -> response = handleExists(node);
+                case "estimatedcount" -> response = handleEstimatedCount(node);
+                case "query" -> response = handleQuery(node);
+                case "explain" -> response = handleExplain(node);
+                case "aggregate" -> response = handleAggregate(node);
+                case "getmore" -> response = handleGetMore(node);
+                case "killcursor" -> response = handleKillCursor(node);
+                case "createindex" -> response = handleCreateIndex(node);
+                case "dropindex" -> response = handleDropIndex(node);
+                case "indexbuilds" -> response = handleIndexBuilds(node);
+                case "cancelindexbuild" -> response = handleCancelIndexBuild(node);
+                case "stats" -> response = handleStats(node);
             }
         } catch (AuthException e) {
             response = SocketResponse.error(e.getMessage());
@@ -83,6 +106,10 @@ public class ChannelReader {
     private SocketResponse handleFindAll(JsonBase node) throws AuthException {
         assertPermission(node, "read");
         Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        if (object != null && object.has("batchSize")) {
+            return CursorManager.open(this, collection.iterate(Query.of(Filter.all())), batchSize(object));
+        }
         List<String> result = collection.findAll().stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
         return SocketResponse.success(result.toString());
     }
@@ -92,11 +119,181 @@ public class ChannelReader {
         Collection collection = getCollection(node);
         JsonBase object = new JsonBase(node.get("object").getAsString().getBytes(StandardCharsets.UTF_8));
         String where = object.get("where").getAsString();
-        Object value = object.get("value").getAsString();
+        Object value = object.getData().get("value"); // as parsed, so numbers and booleans match too
+        if (object.has("batchSize")) {
+            return CursorManager.open(this, collection.iterate(Query.of(Filter.eq(where, value))), batchSize(object));
+        }
         List<String> result = collection.find(where, value).stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
         return SocketResponse.success(result.toString());
     }
 
+    private SocketResponse handleFindRange(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        String field = object.get("field").getAsString();
+        Range range;
+        if (object.has("prefix")) {
+            range = Range.prefix(object.get("prefix").getAsString());
+        } else {
+            range = new Range(object.getData().get("from"), !object.has("fromInclusive") || Boolean.TRUE.equals(object.getData().get("fromInclusive")),
+                    object.getData().get("to"), !object.has("toInclusive") || Boolean.TRUE.equals(object.getData().get("toInclusive")));
+        }
+        int limit = object.getData().get("limit") instanceof Number number ? number.intValue() : 0;
+        boolean descending = Boolean.TRUE.equals(object.getData().get("descending"));
+        List<String> result = collection.findRange(field, range, limit, descending).stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
+        return SocketResponse.success(result.toString());
+    }
+
+    private SocketResponse handleSearch(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        String field = object.get("field").getAsString();
+        String query = object.get("query").getAsString();
+        boolean matchAll = !object.has("operator") || !object.get("operator").getAsString().equalsIgnoreCase("or");
+        int limit = object.getData().get("limit") instanceof Number number ? number.intValue() : 0;
+        return SocketResponse.success(collection.search(field, query, matchAll, limit).toString());
+    }
+
+    private SocketResponse handleFindWhere(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        Map<String, Object> where = object.getAsMap("where", Object.class);
+        List<String> projection = object.has("projection") ? object.getAsList("projection", String.class) : null;
+        List<String> result = collection.find(where, projection).stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
+        return SocketResponse.success(result.toString());
+    }
+
+    private SocketResponse handleFindFilter(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        Filter filter = Filter.fromMap(object.getAsMap("filter", Object.class));
+        int limit = object.getData().get("limit") instanceof Number number ? number.intValue() : 0;
+        List<String> result = collection.find(filter, limit).stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
+        return SocketResponse.success(result.toString());
+    }
+
+    private SocketResponse handleCount(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        Filter filter = object.has("query") ? Filter.parse(object.getAsMap("query", Object.class)) : Filter.fromMap(object.getAsMap("filter", Object.class));
+        return SocketResponse.success(String.valueOf(collection.count(filter)));
+    }
+
+    private SocketResponse handleExists(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        return SocketResponse.success(String.valueOf(collection.exists(object.get("id").getAsString())));
+    }
+
+    private SocketResponse handleEstimatedCount(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        return SocketResponse.success(String.valueOf(collection.estimatedCount()));
+    }
+
+    private SocketResponse handleQuery(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        Query query = Query.fromMap(object.getData());
+        if (object.has("batchSize")) {
+            return CursorManager.open(this, collection.iterate(query), batchSize(object));
+        }
+        List<String> result = collection.query(query).stream().map(e -> Base64.getEncoder().encodeToString(e)).toList();
+        return SocketResponse.success(result.toString());
+    }
+
+    private SocketResponse handleExplain(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        JsonBase result = new JsonBase(collection.explain(Query.fromMap(node.getAsJson("object").getData())));
+        return SocketResponse.success(Base64.getEncoder().encodeToString(result.asJsonText().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // {"pipeline": [...]}, the results come back as base64 json like explain
+    private SocketResponse handleAggregate(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        Collection collection = getCollection(node);
+        Object stages = node.getAsJson("object").getData().get("pipeline");
+        if (!(stages instanceof List<?> list)) return SocketResponse.error("Pipeline must be a list of stages");
+        JsonBase result = new JsonBase(new HashMap<>());
+        result.put("results", collection.aggregate(Pipeline.fromList(list)));
+        return SocketResponse.success(Base64.getEncoder().encodeToString(result.asJsonText().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // the cursor id comes as a string, as it is sent back in responses
+    private SocketResponse handleGetMore(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        JsonBase object = node.getAsJson("object");
+        return CursorManager.getMore(this, String.valueOf(object.getData().get("cursor")), batchSize(object));
+    }
+
+    private SocketResponse handleKillCursor(JsonBase node) throws AuthException {
+        assertPermission(node, "read");
+        JsonBase object = node.getAsJson("object");
+        return SocketResponse.success(CursorManager.close(this, String.valueOf(object.getData().get("cursor"))) ? "KILLED" : "NOT_FOUND");
+    }
+
+    private static int batchSize(JsonBase object) {
+        return object.getData().get("batchSize") instanceof Number number ? number.intValue() : 0;
+    }
+
+    // cursors of this connection, called once the socket is closed
+    public void close() {
+        CursorManager.closeAll(this);
+    }
+
+    private SocketResponse handleCreateIndex(JsonBase node) throws AuthException {
+        assertPermission(node, "write");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        boolean created;
+        if (object.has("fields")) {
+            created = collection.createIndex(object.getAsList("fields", String.class), object.has("include") ? object.getAsList("include", String.class) : List.of());
+        } else {
+            String field = object.get("field").getAsString();
+            created = object.has("type") ? collection.createIndex(field, object.get("type").getAsString()) : collection.createIndex(field);
+        }
+        return SocketResponse.success(created ? "CREATED" : "EXISTS");
+    }
+
+    private SocketResponse handleDropIndex(JsonBase node) throws AuthException {
+        assertPermission(node, "write");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        String field = object.get("field").getAsString();
+        return SocketResponse.success(collection.dropIndex(field) ? "DROPPED" : "NOT_FOUND");
+    }
+
+    private SocketResponse handleIndexBuilds(JsonBase node) throws AuthException {
+        assertPermission(node, "admin");
+        Collection collection = getCollection(node);
+        JsonBase result = new JsonBase(new HashMap<>());
+        result.put("builds", collection.getIndexBuilds());
+        return SocketResponse.success(Base64.getEncoder().encodeToString(result.asJsonText().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private SocketResponse handleCancelIndexBuild(JsonBase node) throws AuthException {
+        assertPermission(node, "admin");
+        Collection collection = getCollection(node);
+        JsonBase object = node.getAsJson("object");
+        String field = object.get("field").getAsString();
+        return SocketResponse.success(collection.cancelIndexBuild(field) ? "CANCELLED" : "NOT_RUNNING");
+    }
+
+    private SocketResponse handleStats(JsonBase node) throws AuthException {
+        assertPermission(node, "admin");
+        JsonBase result = new JsonBase(new HashMap<>());
+        result.put("stats", Server.getProvider().getStats());
+        return SocketResponse.success(Base64.getEncoder().encodeToString(result.asJsonText().getBytes(StandardCharsets.UTF_8)));
+    }
+
     private SocketResponse handleDelete(JsonBase node) throws AuthException {
         assertPermission(node, "write");
         Collection collection = getCollection(node);
@@ -0,0 +1,114 @@
+package net.weesli.server.channel;
+
+import net.weesli.server.Server;
+import net.weesli.server.model.Cursor;
+import net.weesli.server.model.SocketResponse;
+import net.weesli.services.json.JsonBase;
+import net.weesli.services.log.DatabaseLogger;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open cursors of every connection. A result larger than a batch stays on the server as an iterator over the collection
+ * and is fetched with getmore, so neither side holds more than a batch of it. A cursor belongs to the connection that
+ * opened it, is closed with it, and is dropped once it has not been used for idleTimeoutMs.
+ */
+public class CursorManager {
+
+    private static final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private static final AtomicLong ids = new AtomicLong();
+    private static ScheduledExecutorService sweeper;
+
+    public static SocketResponse open(Object owner, Iterator<byte[]> documents, int batchSize) {
+        Cursor cursor = new Cursor(String.valueOf(ids.incrementAndGet()), owner, documents);
+        List<String> batch;
+        try {
+            batch = cursor.next(batchSize(batchSize));
+            if (cursor.isExhausted()) return SocketResponse.batch("0", batch); // fits in one batch, nothing to keep
+        } catch (Exception e) { // the collection was closed while reading
+            return SocketResponse.error(String.valueOf(e.getMessage()));
+        }
+        cursors.put(cursor.getId(), cursor);
+        startSweeper();
+        return SocketResponse.batch(cursor.getId(), batch);
+    }
+
+    public static SocketResponse getMore(Object owner, String id, int batchSize) {
+        Cursor cursor = cursors.get(id);
+        if (cursor == null || cursor.getOwner() != owner) return SocketResponse.error("Cursor not found");
+        List<String> batch;
+        try {
+            batch = cursor.next(batchSize(batchSize));
+            if (cursor.isExhausted()) {
+                close(owner, id);
+                return SocketResponse.batch("0", batch);
+            }
+        } catch (Exception e) { // the collection was closed under the cursor, it can not go on
+            close(owner, id);
+            return SocketResponse.error(String.valueOf(e.getMessage()));
+        }
+        return SocketResponse.batch(id, batch);
+    }
+
+    public static boolean close(Object owner, String id) {
+        Cursor cursor = cursors.get(id);
+        if (cursor == null || cursor.getOwner() != owner || !cursors.remove(id, cursor)) return false;
+        cursor.close();
+        return true;
+    }
+
+    public static void closeAll(Object owner) {
+        cursors.values().removeIf(cursor -> {
+            if (cursor.getOwner() != owner) return false;
+            cursor.close();
+            return true;
+        });
+    }
+
+    public static int getOpenCount() {
+        return cursors.size();
+    }
+
+    // a size of 0 or less takes the default, the maximum caps what a client may ask for
+    private static int batchSize(int requested) {
+        long size = requested > 0 ? requested : getSetting("defaultBatchSize", 100);
+        return (int) Math.max(1, Math.min(size, getSetting("maxBatchSize", 10_000)));
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper != null) return;
+        long idle = getSetting("idleTimeoutMs", 300_000);
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cursor-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1_000, Math.min(idle / 4, 30_000));
+        sweeper.scheduleAtFixedRate(() -> sweep(idle), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sweep(long idle) {
+        long now = System.currentTimeMillis();
+        cursors.values().removeIf(cursor -> {
+            if (now - cursor.getLastUsed() < idle) return false;
+            cursor.close();
+            DatabaseLogger.logServer(DatabaseLogger.LogLevel.INFO, "Cursor " + cursor.getId() + " closed after being idle");
+            return true;
+        });
+    }
+
+    // read on use, so an older settings.json without the section keeps the defaults
+    private static long getSetting(String key, long defaultValue) {
+        JsonBase section = Server.getProvider() != null && Server.getProvider().getCoreSettings().getSettings() != null
+                ? Server.getProvider().getCoreSettings().get("cursor") : null;
+        Object value = section != null ? section.getData().get(key) : null;
+        return value instanceof Number number ? number.longValue() : defaultValue;
+    }
+}
@@ -0,0 +1,42 @@
+package net.weesli.server.model;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+// the rest of a result, read from the collection one batch at a time
+@Getter
+public class Cursor {
+
+    private final String id;
+    private final Object owner; // the connection that opened it
+    private final Iterator<byte[]> documents;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private boolean closed;
+
+    public Cursor(String id, Object owner, Iterator<byte[]> documents) {
+        this.id = id;
+        this.owner = owner;
+        this.documents = documents;
+    }
+
+    public synchronized List<String> next(int batchSize) {
+        lastUsed = System.currentTimeMillis();
+        List<String> batch = new ArrayList<>(Math.min(batchSize, 1024));
+        while (!closed && batch.size() < batchSize && documents.hasNext()) {
+            batch.add(Base64.getEncoder().encodeToString(documents.next()));
+        }
+        return batch;
+    }
+
+    public synchronized boolean isExhausted() {
+        return closed || !documents.hasNext();
+    }
+
+    public synchronized void close() {
+        closed = true;
+    }
+}
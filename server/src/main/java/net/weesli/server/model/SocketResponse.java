@@ -5,19 +5,26 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
-public record SocketResponse(boolean success, String message) {
+public record SocketResponse(boolean success, String message, String cursor) {
 
     public static SocketResponse success(String message) {
-        return new SocketResponse(true, message);
+        return new SocketResponse(true, message, null);
     }
 
     public static SocketResponse error(String message) {
-        return new SocketResponse(false, message);
+        return new SocketResponse(false, message, null);
+    }
+
+    // a batch of base64 documents, the cursor is "0" once there is nothing left to fetch
+    public static SocketResponse batch(String cursor, List<String> documents) {
+        return new SocketResponse(true, documents.toString(), cursor);
     }
 
     public String getJson(){
-        return "{\"status\":\"" + (success ? "success" : "error") + "\", \"message\":\"" + message + "\"}";
+        return "{\"status\":\"" + (success ? "success" : "error") + "\", \"message\":\"" + message + "\""
+                + (cursor != null ? ", \"cursor\":\"" + cursor + "\"" : "") + "}";
     }
 
     public void send(Socket socket) throws IOException {
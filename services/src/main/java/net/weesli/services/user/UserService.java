@@ -40,6 +40,7 @@ public class UserService extends Service {
                 boolean isAdminOrWrite = registry.hasPermission(admin, UserPermission.ADMIN);
                 yield isAdminOrWrite || registry.hasPermission(admin, UserPermission.READ);
             }
+            case "admin" -> registry.hasPermission(admin, UserPermission.ADMIN);
             default -> false;
         };
     }